@@ -2,4 +2,6 @@
 # android bus EventTakerResult
 -keepclassmembers class * { @com.androidbus.core.Bus$EventTakerResult <methods>; }
 # android bus EventTakerRequest
--keepclassmembers class * { @com.androidbus.core.Bus$EventTakerRequest <methods>; }
\ No newline at end of file
+-keepclassmembers class * { @com.androidbus.core.Bus$EventTakerRequest <methods>; }
+# android bus generated dispatchers
+-keep class **$$BusDispatcher { *; }
@@ -1,35 +1,63 @@
 package com.androidbus.core;
 
+import android.app.Activity;
 import android.app.Application;
 import android.app.Service;
+import android.content.ComponentName;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.PackageInfo;
 import android.content.pm.PackageManager;
 import android.content.pm.ServiceInfo;
+import android.os.Build;
 import android.os.Bundle;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
 import android.os.Message;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.os.Process;
+import android.os.SystemClock;
 import android.support.annotation.NonNull;
 import android.support.annotation.Nullable;
 import android.util.Log;
 import android.util.SparseArray;
+import android.util.SparseBooleanArray;
+import android.util.SparseIntArray;
+import android.view.Choreographer;
 
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
 import java.lang.annotation.ElementType;
 import java.lang.annotation.Retention;
 import java.lang.annotation.RetentionPolicy;
 import java.lang.annotation.Target;
+import java.lang.ref.WeakReference;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Vector;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public final class Bus {
 
@@ -37,29 +65,121 @@ public final class Bus {
     private static final boolean DEBUG = false;
 
     @NonNull
-    private static final String EVENT_FOR_SERVICE = "_event_for_service";
-    private static final int NOT_FIND_ID = -1;
+    private static final String EVENTS_FOR_SERVICE = "_events_for_service";
+    @NonNull
+    private static final String EVENTS_TRACKED = "_events_tracked";
+    private static final String BACKGROUND_THREAD_NAME = "bus-results";
+    private static final String INIT_THREAD_NAME = "bus-init";
+    @NonNull
+    private static final ResultHandler[] NO_HANDLERS = new ResultHandler[0];
+    // for scopes, services are started by the default bus only
+    @NonNull
+    private static final BusIndex NO_SERVICES = new BusIndex() {
+        @SuppressWarnings("unchecked")
+        @NonNull
+        @Override
+        public Class<? extends BusResultService>[] services() {
+            return new Class[0];
+        }
+
+        @Nullable
+        @Override
+        public BusDispatcher getDispatcher(@NonNull final Class<?> receiverClass) {
+            return null;
+        }
+    };
 
     @NonNull
-    private final ExecutorService mExecutorService = Executors.newCachedThreadPool();
+    private final BusScheduler mScheduler;
+    // request and service indexes, filled by ensureIndexed() and immutable afterwards
+    @NonNull
+    private final SparseArray<RequestTarget[]> mRequestIndex = new SparseArray<>();
+    // collapsed requests in flight, by hash
+    @NonNull
+    private final SparseArray<RequestTask> mCollapsedRequests = new SparseArray<>();
+    @NonNull
+    private final SparseArray<ArrayList<Class<? extends BusResultService>>> mServiceIndex = new SparseArray<>();
+    // null when the app has no services
+    @Nullable
+    private ServiceQueue mServiceQueue;
+    @Nullable
+    private final RequestJournal mJournal;
+    private volatile boolean mIndexed = false;
+    // of the thread building the indexes with isLazyInit(), 0 once done
+    private volatile int mInitTid = 0;
+    @NonNull
+    private final Object mIndexLock = new Object();
+    // inputs of the indexes, dropped once they are built
+    @Nullable
+    private List<BusRequestReceiver> mPendingInbox;
+    @Nullable
+    private BusIndex mPendingIndex;
+    // subscriptions by type, also the lock of everything about them; a type keeps its slot once it has one
+    @NonNull
+    private final SparseArray<ResultSlot> mResultIndex = new SparseArray<>();
+    // copy of mResultIndex sendResult reads without the lock, replaced only when a type gets its slot
     @NonNull
-    private final BusRequestReceiver[] mRequestList;
+    private volatile SparseArray<ResultSlot> mResultSlots = new SparseArray<>();
+    // written under mResultIndex, replaced on every change
+    @Nullable
+    private volatile ResultHandler[] mResultAllHandlers = null;
+    // receivers of ranges or categories, the slots keep their matches until the array is replaced
+    @Nullable
+    private volatile ResultHandler[] mPatternHandlers = null;
+    // guarded by mResultIndex
     @NonNull
-    private List<ResultHandler> mResultHandlers = new ArrayList<>();
+    private final StickyCache mStickyCache;
     @NonNull
-    private final HashMap<BusResultReceiver, Handler> mHandlerMap = new HashMap<>();
+    private final ResultCache mResultCache;
+    @Nullable
+    private volatile BusMetrics mMetrics = null;
+    @Nullable
+    private volatile FlightRecorder mRecorder = null;
+    // weak keys, only entries of weak subscriptions can be cleared as their handlers don't hold the receiver
     @NonNull
-    private final Class<? extends BusResultService>[] mServices;
+    private final WeakHashMap<BusResultReceiver, ResultHandler> mHandlerMap = new WeakHashMap<>();
+    // guarded by mResultIndex, registered on first scoped subscribe
+    @Nullable
+    private ScopeCallbacks mScopes = null;
+    @NonNull
+    private final HashMap<Looper, DeliveryQueue> mDeliveryQueues = new HashMap<>();
+    // guarded by mResultIndex, started for the first THREAD_BACKGROUND receiver
+    @Nullable
+    private HandlerThread mBackgroundThread = null;
+    // set by BusScope.close(), the default bus is never closed
+    private volatile boolean mClosed = false;
     private static volatile Bus sInstance = null;
     @NonNull
     private Context mContext;
 
-    private int mSequenceId = 0;
+    // copy on write, so the request path reads it without locking; a type is dropped once it has no requests and no
+    // finders
     @NonNull
-    private final SparseArray<BusEvent> mBusEventTable = new SparseArray<>();
+    private volatile SparseArray<InFlightType> mInFlightTypes = new SparseArray<>();
 
     private static final int DEFAULT_EVENT_TYPE = -1;
 
+    public static final int PRIORITY_LOW = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    public static final int PRIORITY_HIGH = 2;
+
+    // BusDispatcher.resultPatterns
+    public static final int RESULT_PATTERN_SIZE = 6;
+
+    // EventTakerRequest.cacheResult of handlers that are not cached
+    public static final int NO_CACHE = Integer.MIN_VALUE;
+
+    // delivery threads of EventTakerResult
+    public static final int THREAD_SUBSCRIBER = 0;
+    public static final int THREAD_POSTING = 1;
+    public static final int THREAD_MAIN = 2;
+    public static final int THREAD_BACKGROUND = 3;
+
+    // output of the end result of a Stream
+    public static final String STREAM_CHUNK_COUNT = "_stream_chunk_count";
+    public static final String STREAM_ERROR = "_stream_error";
+    public static final String STREAM_CANCELLED = "_stream_cancelled";
+
     // ---------- ------------------- ----------
     // ---------- EVENT TAKER REQUEST ----------
     // ---------- ------------------- ----------
@@ -68,6 +188,23 @@ public final class Bus {
     @Retention(RetentionPolicy.RUNTIME)
     public @interface EventTakerRequest {
         int value() default DEFAULT_EVENT_TYPE;
+
+        int priority() default PRIORITY_NORMAL;
+
+        boolean collapse() default false;
+
+        /**
+         * Marks a handler whose output depends only on the request: once it returns the bus sends this result type
+         * with the request input and the handler's output bundle, and answers later requests with an equal input
+         * and payload from the {@link ResultCache} without running the handler. The handler should not send the
+         * result itself.
+         */
+        int cacheResult() default NO_CACHE;
+
+        /**
+         * How long a {@link #cacheResult()} output is reused, 0 until it is evicted.
+         */
+        long cacheTtlMillis() default 0;
     }
 
     // ---------- ------------------ ----------
@@ -78,6 +215,31 @@ public final class Bus {
     @Retention(RetentionPolicy.RUNTIME)
     public @interface EventTakerResult {
         int[] value() default DEFAULT_EVENT_TYPE;
+
+        boolean coalesce() default false;
+
+        /**
+         * {@link #THREAD_SUBSCRIBER} delivers on the looper that subscribed, {@link #THREAD_POSTING} right away on
+         * the thread sending the result, {@link #THREAD_MAIN} on the main looper and {@link #THREAD_BACKGROUND} on
+         * a background looper shared by all receivers.
+         */
+        int thread() default THREAD_SUBSCRIBER;
+
+        /**
+         * With {@link #rangeTo()}, receives every type from {@code rangeFrom} to {@code rangeTo} inclusive instead of
+         * {@link #value()}.
+         */
+        int rangeFrom() default 0;
+
+        int rangeTo() default -1;
+
+        /**
+         * Receives the types whose bits under {@code categoryMask} equal {@link #category()}, e.g. every type of a
+         * feature that keeps its category in the high bits. Combined with a range both must match.
+         */
+        int categoryMask() default 0;
+
+        int category() default 0;
     }
 
     // ---------- ------------------- ----------
@@ -94,35 +256,338 @@ public final class Bus {
     public interface BusRequestReceiver extends BusResultReceiver {
     }
 
+    // ---------- -------------- ----------
+    // ---------- BUS DISPATCHER ----------
+    // ---------- -------------- ----------
+
+    /**
+     * Implemented by the classes the androidbus processor generates for every receiver class
+     * ({@code <receiver binary name>$$BusDispatcher}). When no such class exists the bus falls back to reflection.
+     */
+    public interface BusDispatcher {
+        @NonNull
+        int[] requestTypes();
+
+        @NonNull
+        int[] requestPriorities();
+
+        @NonNull
+        int[] collapsedRequestTypes();
+
+        // parallel to requestTypes(), NO_CACHE for handlers that are not cached
+        @NonNull
+        int[] requestCacheResults();
+
+        // parallel to requestTypes()
+        @NonNull
+        long[] requestCacheTtls();
+
+        @NonNull
+        int[] resultTypes();
+
+        @NonNull
+        int[] coalescedResultTypes();
+
+        // parallel to resultTypes()
+        @NonNull
+        int[] resultThreads();
+
+        // RESULT_PATTERN_SIZE values per range or category method: from, to, mask, category, thread, coalesce
+        @NonNull
+        int[] resultPatterns();
+
+        boolean dispatchRequest(@NonNull final Object receiver, @NonNull final BusEvent event);
+
+        boolean dispatchResult(@NonNull final Object receiver, @NonNull final BusEvent event);
+
+        boolean dispatchResultAll(@NonNull final Object receiver, @NonNull final BusEvent event);
+
+        boolean dispatchResultPattern(@NonNull final Object receiver, final int pattern, @NonNull final BusEvent event);
+    }
+
+    // ---------- --------- ----------
+    // ---------- BUS INDEX ----------
+    // ---------- --------- ----------
+
+    /**
+     * Generated by the androidbus processor when the {@code androidbus.index} option names a class, see
+     * {@link BusApplication#createIndex()}. Covers the classes compiled in the module that sets the option.
+     */
+    public interface BusIndex {
+        @NonNull
+        Class<? extends BusResultService>[] services();
+
+        @Nullable
+        BusDispatcher getDispatcher(@NonNull final Class<?> receiverClass);
+    }
+
     // ---------- --------- ----------
     // ---------- BUS EVENT ----------
     // ---------- --------- ----------
 
+    /**
+     * Bundles given to the bus are shared with the receivers instead of being copied, so they must not be
+     * changed after sending. {@code getBundle*} return the shared (or empty) bundle for reading,
+     * {@code editBundle*} make a private copy on first use. Events of {@link Bus#setRecyclable(int, boolean)}
+     * types come from a pool and are only valid until the handler returns.
+     */
     public final static class BusEvent implements Parcelable, Cloneable {
 
+        private static final int MAX_POOL_SIZE = 32;
+        @NonNull
+        private static final Object sPoolSync = new Object();
+        @Nullable
+        private static BusEvent sPool;
+        private static int sPoolSize = 0;
+
         private int type;
+        /**
+         * @deprecated the bundle shared with the sender and the other receivers, an empty one of this event if none
+         * was given. It used to be a private copy; read it with {@link #getBundleInput()} and change the copy returned
+         * by {@link #editBundleInput()} instead of writing to it.
+         */
+        @Deprecated
         @NonNull
-        public final Bundle bundleInput;
+        public Bundle bundleInput;
+        /**
+         * @deprecated shared like {@link #bundleInput}, use {@link #getBundleOutput()} and {@link #editBundleOutput()}
+         */
+        @Deprecated
         @NonNull
-        public final Bundle bundleOutput;
+        public Bundle bundleOutput;
+        private boolean ownInput;
+        private boolean ownOutput;
+        // behind the fields when no bundle was sent, so writes to them never reach a shared one; kept by pooled events
+        @Nullable
+        private Bundle emptyInput;
+        @Nullable
+        private Bundle emptyOutput;
+        // in process only, parceled just when it is Parcelable
+        @Nullable
+        private Object payload;
+
+        // set for requests sent with sendCancellableRequest
+        @Nullable
+        private RequestHandle handle;
+        // set for requests of durable types while their handlers run
+        @Nullable
+        private JournalEntry journalEntry;
+        // set for requests sent with sendStreamingRequest
+        @Nullable
+        private StreamState stream;
+        // set for the chunks they emit, counts their pendingDeliveries
+        @Nullable
+        private StreamState chunkOf;
+        // sent with canFind; result services release its in-flight count once handled or dropped, the journal keeps it
+        private boolean tracked = false;
+
+        private boolean recyclable = false;
+        private int pendingDeliveries = 0;
+        @Nullable
+        private BusEvent next;
 
         private BusEvent(final int eventType, @Nullable final Bundle bundleInput, @Nullable final Bundle bundleOutput) {
+            this(eventType, bundleInput, bundleOutput, false);
+        }
+
+        private BusEvent(final int eventType, @Nullable final Bundle bundleInput, @Nullable final Bundle bundleOutput,
+                         final boolean own) {
             this.type = eventType;
-            this.bundleInput = bundleInput == null ? new Bundle() : new Bundle(bundleInput);
-            this.bundleOutput = bundleOutput == null ? new Bundle() : new Bundle(bundleOutput);
+            setBundles(bundleInput, bundleOutput, own);
+        }
+
+        private void setBundles(@Nullable final Bundle input, @Nullable final Bundle output, final boolean own) {
+            if (input != null) {
+                bundleInput = input;
+                ownInput = own;
+            } else {
+                if (emptyInput == null) {
+                    emptyInput = new Bundle();
+                } else {
+                    emptyInput.clear();
+                }
+                bundleInput = emptyInput;
+                ownInput = true;
+            }
+            if (output != null) {
+                bundleOutput = output;
+                ownOutput = own;
+            } else {
+                if (emptyOutput == null) {
+                    emptyOutput = new Bundle();
+                } else {
+                    emptyOutput.clear();
+                }
+                bundleOutput = emptyOutput;
+                ownOutput = true;
+            }
+        }
+
+        @NonNull
+        private static BusEvent withPayload(final int eventType, @Nullable final Object payload) {
+            BusEvent event = new BusEvent(eventType, null, null);
+            event.payload = payload;
+            return event;
         }
 
         public int getType() {
             return type;
         }
 
+        @NonNull
+        public Bundle getBundleInput() {
+            return bundleInput;
+        }
+
+        @NonNull
+        public Bundle getBundleOutput() {
+            return bundleOutput;
+        }
+
+        @NonNull
+        public synchronized Bundle editBundleInput() {
+            if (!ownInput) {
+                bundleInput = new Bundle(bundleInput);
+                ownInput = true;
+            }
+            return bundleInput;
+        }
+
+        /**
+         * Every request handler gets an event of its own, so the copy is private to the calling handler. Receivers
+         * of a result share the event, each should edit it only on its delivery thread.
+         */
+        @NonNull
+        public synchronized Bundle editBundleOutput() {
+            if (!ownOutput) {
+                bundleOutput = new Bundle(bundleOutput);
+                ownOutput = true;
+            }
+            return bundleOutput;
+        }
+
+        // for one of several request handlers, shares everything but the bundles it edits
+        @NonNull
+        private BusEvent forHandler() {
+            BusEvent event = new BusEvent(type, ownInput ? null : bundleInput, ownOutput ? null : bundleOutput);
+            if (ownInput) {
+                event.bundleInput.putAll(bundleInput);
+            }
+            if (ownOutput) {
+                event.bundleOutput.putAll(bundleOutput);
+            }
+            event.payload = payload;
+            event.handle = handle;
+            event.journalEntry = journalEntry;
+            event.stream = stream;
+            return event;
+        }
+
+        /**
+         * The object given to {@link Bus#sendRequest(int, Object)} or {@link Bus#sendResult(int, Object)}, shared
+         * with every receiver without copying. Services only get it if it is {@link Parcelable}.
+         */
+        @Nullable
+        @SuppressWarnings("unchecked")
+        public <T> T getPayload() {
+            return (T) payload;
+        }
+
+        /**
+         * True once the request was cancelled or its deadline passed. Long running request handlers should check it
+         * and return early, the bus never interrupts them.
+         */
+        public boolean isCancelled() {
+            RequestHandle requestHandle = handle;
+            return requestHandle != null && requestHandle.isCancelled();
+        }
+
+        /**
+         * Sends a chunk of the result of a {@link Bus#sendStreamingRequest} to the receivers of the chunk type, with
+         * the input of the request. Blocks while the receivers are {@link Stream#setCapacity} chunks behind.
+         *
+         * @return false once the request is cancelled, the handler should stop and return then
+         */
+        public boolean emit(@Nullable final Bundle chunk) {
+            return emit(chunk, null);
+        }
+
+        public boolean emit(@Nullable final Object payload) {
+            return emit(null, payload);
+        }
+
+        private boolean emit(@Nullable final Bundle chunk, @Nullable final Object chunkPayload) {
+            StreamState streamState = stream;
+            if (streamState == null) {
+                throw new IllegalStateException("not a streaming request: " + type);
+            }
+            return streamState.emit(chunk, chunkPayload);
+        }
+
+        // ---------- POOL PART ----------
+
+        @NonNull
+        private static BusEvent obtain(final int eventType, @Nullable final Bundle bundleInput,
+                                       @Nullable final Bundle bundleOutput, final int deliveries) {
+            BusEvent event = null;
+            synchronized (sPoolSync) {
+                if (sPool != null) {
+                    event = sPool;
+                    sPool = event.next;
+                    event.next = null;
+                    sPoolSize--;
+                }
+            }
+            if (event == null) {
+                event = new BusEvent(eventType, bundleInput, bundleOutput);
+            } else {
+                event.type = eventType;
+                event.setBundles(bundleInput, bundleOutput, false);
+            }
+            event.recyclable = true;
+            event.pendingDeliveries = deliveries;
+            return event;
+        }
+
+        private void onDelivered() {
+            StreamState streamState = chunkOf;
+            if (streamState != null) {
+                synchronized (this) {
+                    if (--pendingDeliveries != 0) {
+                        return;
+                    }
+                }
+                streamState.onChunkDelivered();
+                return;
+            }
+            if (!recyclable) {
+                return;
+            }
+            synchronized (this) {
+                if (--pendingDeliveries > 0) {
+                    return;
+                }
+                recyclable = false;
+                setBundles(null, null, false);
+                payload = null;
+            }
+            synchronized (sPoolSync) {
+                if (sPoolSize < MAX_POOL_SIZE) {
+                    next = sPool;
+                    sPool = this;
+                    sPoolSize++;
+                }
+            }
+        }
+
         // ---------- PARCELABLE PART ----------
 
         @Override
         public void writeToParcel(@NonNull final Parcel parcel, final int ii) {
             parcel.writeInt(type);
-            parcel.writeBundle(bundleInput);
-            parcel.writeBundle(bundleOutput);
+            parcel.writeBundle(getBundleInput());
+            parcel.writeBundle(getBundleOutput());
+            parcel.writeValue(payload instanceof Parcelable ? payload : null);
         }
 
         @Override
@@ -133,7 +598,9 @@ public final class Bus {
         final static public Creator<BusEvent> CREATOR = new Creator<BusEvent>() {
             @Override
             public BusEvent createFromParcel(@NonNull final Parcel parcel) {
-                return new BusEvent(parcel.readInt(), parcel.readBundle(), parcel.readBundle());
+                BusEvent event = new BusEvent(parcel.readInt(), parcel.readBundle(), parcel.readBundle(), true);
+                event.payload = parcel.readValue(BusEvent.class.getClassLoader());
+                return event;
             }
 
             @Override
@@ -143,334 +610,3720 @@ public final class Bus {
         };
     }
 
-    // ---------- --------------- ----------
-    // ---------- BUS APPLICATION ----------
-    // ---------- --------------- ----------
+    // ---------- -------------- ----------
+    // ---------- REQUEST HANDLE ----------
+    // ---------- -------------- ----------
 
-    public static abstract class BusApplication extends Application {
+    /**
+     * Returned by {@link Bus#sendCancellableRequest}. Tracks the request handlers of the inbox layers; services
+     * started for the request are not covered. Cancelling drops handlers that have not started yet and makes
+     * {@link BusEvent#isCancelled()} true for the running ones, and so does passing the deadline.
+     */
+    public final static class RequestHandle {
 
-        private static final String TAG_ERROR_INIT_SERVICES = "error init android bus";
+        private final long mDeadlineNanos;
+        private volatile boolean mCancelled = false;
+        // guarded by this
+        private int mPending;
+        // set before the handlers are scheduled, woken up on cancel
+        @Nullable
+        private StreamState mStream;
 
-        public abstract List<BusRequestReceiver> createListInboxLayers();
+        private RequestHandle(final long timeoutMillis, final int pending) {
+            mDeadlineNanos = timeoutMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMillis) : 0;
+            mPending = pending;
+        }
 
-        @SuppressWarnings("unchecked")
-        @Override
-        public void onCreate() {
-            super.onCreate();
-            Class<? extends BusResultService>[] services;
-            try {
-                PackageManager manager = getPackageManager();
-                assert manager != null;
-                PackageInfo packageInfo = manager.getPackageInfo(getPackageName(), PackageManager.GET_SERVICES);
-                ArrayList<Class> busResultReceivers = new ArrayList<>();
-                if (packageInfo.services != null) {
-                    for (ServiceInfo serviceInfo : packageInfo.services) {
-                        Class clazz = Class.forName(serviceInfo.name);
-                        if (BusResultService.class.isAssignableFrom(clazz)) {
-                            busResultReceivers.add(clazz);
-                        }
-                    }
+        /**
+         * @return false if every handler had already finished
+         */
+        public boolean cancel() {
+            synchronized (this) {
+                if (mPending == 0) {
+                    return false;
                 }
-                services = busResultReceivers.toArray(new Class[busResultReceivers.size()]);
-            } catch (PackageManager.NameNotFoundException | ClassNotFoundException e) {
-                services = new Class[0];
-                Log.e(TAG_ERROR_INIT_SERVICES, TAG_ERROR_INIT_SERVICES, e);
             }
-            Bus.initInstance(this, createListInboxLayers(), services);
+            mCancelled = true;
+            if (mStream != null) {
+                mStream.wake();
+            }
+            return true;
         }
-    }
 
-    // ---------- ------------------ ----------
-    // ---------- BUS RESULT SERVICE ----------
-    // ---------- ------------------ ----------
+        public boolean isCancelled() {
+            return mCancelled || (mDeadlineNanos != 0 && System.nanoTime() - mDeadlineNanos >= 0);
+        }
 
-    public static abstract class BusResultService extends Service implements BusRequestReceiver {
+        public synchronized boolean isDone() {
+            return mPending == 0;
+        }
 
-        @Override
-        public int onStartCommand(@Nullable final Intent intent, final int flags, final int startId) {
-            BusEvent event;
-            if (intent == null || (event = intent.getParcelableExtra(Bus.EVENT_FOR_SERVICE)) == null) {
-                return super.onStartCommand(intent, flags, startId);
-            } else {
-                BusAnnotationProcessor.processEventAnnotationRequest(event, BusResultService.this);
-                return isAutoRestart() ? START_STICKY : START_NOT_STICKY;
+        public synchronized void await() throws InterruptedException {
+            while (mPending > 0) {
+                wait();
             }
         }
 
-        protected boolean isAutoRestart() {
-            return false;
+        /**
+         * @return true if every handler finished or was dropped in time
+         */
+        public synchronized boolean await(final long timeout, @NonNull final TimeUnit unit) throws InterruptedException {
+            long remaining = unit.toNanos(timeout);
+            long end = System.nanoTime() + remaining;
+            while (mPending > 0) {
+                if (remaining <= 0) {
+                    return false;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                remaining = end - System.nanoTime();
+            }
+            return true;
+        }
+
+        private synchronized void onFinished() {
+            if (--mPending == 0) {
+                notifyAll();
+            }
         }
     }
 
-    // ---------- ---------------------- ----------
-    // ---------- EVENTS FINDER LISTENER ----------
-    // ---------- ---------------------- ----------
+    // ---------- ------ ----------
+    // ---------- GATHER ----------
+    // ---------- ------ ----------
 
-    public interface EventsFinderListener {
-        public void notifyHas(final boolean b);
+    /**
+     * Merges the output bundle of one request handler into the aggregated output. Calls are serialized, in the
+     * order the handlers finish.
+     */
+    public interface BusCombiner {
+        BusCombiner PUT_ALL = new BusCombiner() {
+            @Override
+            public void combine(@NonNull final Bundle merged, @NonNull final BusEvent handlerEvent) {
+                merged.putAll(handlerEvent.getBundleOutput());
+            }
+        };
+
+        void combine(@NonNull final Bundle merged, @NonNull final BusEvent handlerEvent);
     }
 
-    // ---------- ------------- ----------
-    // ---------- EVENTS FINDER ----------
-    // ---------- ------------- ----------
+    /**
+     * Describes how {@link Bus#sendGatherRequest} collects the outputs of the request handlers: the result type
+     * sent with the merged output once every handler finished, and optionally a partial result sent as soon as
+     * {@code quorum} of them did.
+     */
+    public final static class Gather {
 
-    public final static class EventsFinder {
-        final int type;
+        private final int mResultType;
         @NonNull
-        final EventsFinderListener listener;
+        private final BusCombiner mCombiner;
+        private int mQuorum = 0;
+        private int mPartialResultType;
 
-        public EventsFinder(final int type, @NonNull final EventsFinderListener listener) {
-            this.type = type;
-            this.listener = listener;
+        public Gather(final int resultType) {
+            this(resultType, BusCombiner.PUT_ALL);
         }
 
-        private boolean has(BusEvent event) {
-            return event != null && event.getType() == type;
+        public Gather(final int resultType, @NonNull final BusCombiner combiner) {
+            mResultType = resultType;
+            mCombiner = combiner;
         }
 
-        @Override
-        public String toString() {
-            return "{" + type + "}";
+        /**
+         * Sends {@code partialResultType} with a copy of the output merged so far when {@code quorum} handlers
+         * finished. Not sent if there are not more handlers than that.
+         */
+        @NonNull
+        public Gather setQuorum(final int quorum, final int partialResultType) {
+            if (quorum <= 0) {
+                throw new IllegalArgumentException("quorum must be positive: " + quorum);
+            }
+            mQuorum = quorum;
+            mPartialResultType = partialResultType;
+            return this;
         }
     }
 
-    // ---------- CURRENT PROCESSES TABLE ----------
+    // ---------- ------ ----------
+    // ---------- STREAM ----------
+    // ---------- ------ ----------
 
-    @NonNull
-    private final SparseArray<Vector<EventsFinder>> mEventsFinders = new SparseArray<Vector<EventsFinder>>() {
-        @Override
-        public String toString() {
-            StringBuilder builder = new StringBuilder("finders:[");
-            for (int i = size() - 1; i >= 0; i--) {
-                builder.append(keyAt(i)).append(":[");
-                for (EventsFinder finder : get(keyAt(i))) {
-                    builder.append(finder);
-                }
-                builder.append(i == 0 ? "]" : "],");
-            }
-            return builder.append("]").toString();
+    /**
+     * Describes how {@link Bus#sendStreamingRequest} delivers what its request handlers {@link BusEvent#emit}: every
+     * chunk as a result of {@code chunkResultType}, then a single result of {@code endResultType} once every handler
+     * returned. Its output holds {@link #STREAM_CHUNK_COUNT}, and {@link #STREAM_ERROR} if a handler threw or
+     * {@link #STREAM_CANCELLED} if the request was cancelled.
+     */
+    public final static class Stream {
+
+        public static final int DEFAULT_CAPACITY = 16;
+
+        private final int mChunkResultType;
+        private final int mEndResultType;
+        private int mCapacity = DEFAULT_CAPACITY;
+
+        public Stream(final int chunkResultType, final int endResultType) {
+            mChunkResultType = chunkResultType;
+            mEndResultType = endResultType;
         }
-    };
 
-    private void processNewFinder(@NonNull final EventsFinder eventsFinder) {
-        synchronized (mBusEventTable) {
-            for (int i = mBusEventTable.size(); i >= 0; i--) {
-                if (eventsFinder.has(mBusEventTable.get(mBusEventTable.keyAt(i)))) {
-                    eventsFinder.listener.notifyHas(true);
-                    return;
-                }
+        /**
+         * Chunks that can be sent and not yet handled by every receiver before {@link BusEvent#emit} blocks.
+         */
+        @NonNull
+        public Stream setCapacity(final int capacity) {
+            if (capacity <= 0) {
+                throw new IllegalArgumentException("capacity must be positive: " + capacity);
             }
-            eventsFinder.listener.notifyHas(false);
+            mCapacity = capacity;
+            return this;
         }
     }
 
-    private void processNewEvent(@NonNull final BusEvent event) {
-        for (EventsFinder finder : mEventsFinders.get(event.getType())) {
-            if (finder.has(event)) {
-                finder.listener.notifyHas(true);
-                return;
-            }
+    // ---------- --------- ----------
+    // ---------- BUS SCOPE ----------
+    // ---------- --------- ----------
+
+    /**
+     * A bus of its own for one feature: its inbox layers, scheduler, subscribers, sticky results and in-flight
+     * requests are not shared with the default bus behind the static methods, nor with other scopes. Result
+     * services and the request journal belong to the default bus only. Handlers of a scope send their results
+     * through it, the static methods keep going to the default bus.
+     */
+    public final static class BusScope {
+
+        @NonNull
+        private final Bus mBus;
+
+        public BusScope(@NonNull final Context context, @NonNull final List<BusRequestReceiver> inboxLayers) {
+            this(context, inboxLayers, new BusScheduler(), new StickyCache());
         }
-    }
 
-    private static int addEventToTable(BusEvent event) {
-        synchronized (sInstance.mBusEventTable) {
-            final int id = sInstance.mSequenceId++;
-            sInstance.mBusEventTable.put(id, event);
-            sInstance.processNewEvent(event);
-            if (DEBUG) {
-                Log.e(TAG, TAG + " add event " + id + " size=" + sInstance.mBusEventTable.size());
-            }
-            return id;
+        public BusScope(@NonNull final Context context,
+                        @NonNull final List<BusRequestReceiver> inboxLayers,
+                        @NonNull final BusScheduler scheduler,
+                        @NonNull final StickyCache stickyCache) {
+            this(context, inboxLayers, scheduler, stickyCache, new ResultCache());
         }
-    }
 
-    private static void removeEventWithId(final int id) {
-        if (id < 0) {
-            return;
+        public BusScope(@NonNull final Context context,
+                        @NonNull final List<BusRequestReceiver> inboxLayers,
+                        @NonNull final BusScheduler scheduler,
+                        @NonNull final StickyCache stickyCache,
+                        @NonNull final ResultCache resultCache) {
+            mBus = new Bus(context, inboxLayers, NO_SERVICES, scheduler, stickyCache, resultCache, null);
+            mBus.start(false);
         }
-        synchronized (sInstance.mBusEventTable) {
-            sInstance.mBusEventTable.remove(id);
-            if (DEBUG) {
-                Log.e(TAG, TAG + " remove event " + id + " size=" + sInstance.mBusEventTable.size());
-            }
+
+        @NonNull
+        public ResultCache getResultCache() {
+            return mBus.mResultCache;
         }
-    }
 
-    // ---------- CURRENT PROCESSES TABLE END ----------
+        public void addFinder(@NonNull final EventsFinder eventsFinder) {
+            Bus.addFinder(mBus, eventsFinder);
+        }
 
-    private static void initInstance(@NonNull final Context context,
-                                     @NonNull final List<BusRequestReceiver> listInbox,
-                                     @NonNull final Class<? extends BusResultService>[] services) {
-        sInstance = new Bus(context, listInbox, services);
-    }
+        public void removeFinder(@NonNull final EventsFinder eventsFinder) {
+            Bus.removeFinder(mBus, eventsFinder);
+        }
 
-    private Bus(@NonNull final Context context,
-                @NonNull final List<BusRequestReceiver> listInbox,
-                @NonNull final Class<? extends BusResultService>[] services) {
-        mContext = context;
-        mServices = services;
+        public void subscribe(@NonNull final BusResultReceiver receiver) {
+            Bus.subscribe(mBus, receiver, Subscription.STRONG, null);
+        }
 
-        mRequestList = new BusRequestReceiver[listInbox.size()];
-        for (int i = 0; i < mRequestList.length; i++) {
-            BusAnnotationProcessor.processCacheRequest(mRequestList[i] = listInbox.get(i));
+        public void subscribeWeak(@NonNull final BusResultReceiver receiver) {
+            Bus.subscribe(mBus, receiver, Subscription.WEAK, null);
         }
-        for (Class clazz : mServices) {
-            BusAnnotationProcessor.processCacheRequestClass(clazz);
+
+        public void subscribe(@NonNull final BusResultReceiver receiver, @NonNull final Activity owner) {
+            Bus.subscribe(mBus, receiver, owner);
         }
-    }
 
-    // ----- PUBLIC METHODS START -----
+        public void unSubscribe(@NonNull final BusResultReceiver receiver) {
+            Bus.unSubscribe(mBus, receiver);
+        }
 
-    public static void addFinder(@NonNull final EventsFinder eventsFinder) {
-        synchronized (sInstance.mEventsFinders) {
-            Vector<EventsFinder> eventsFinders = sInstance.mEventsFinders.get(eventsFinder.type);
-            if (eventsFinders == null) {
-                eventsFinders = new Vector<>();
-                sInstance.mEventsFinders.put(eventsFinder.type, eventsFinders);
-            }
-            eventsFinders.add(eventsFinder);
-            sInstance.processNewFinder(eventsFinder);
-            if (DEBUG) {
-                Log.e(TAG, TAG + " add finder " + eventsFinder.type + " filters=" + sInstance.mEventsFinders);
-            }
+        @NonNull
+        public List<Subscription> getSubscriptions() {
+            return Bus.getSubscriptions(mBus);
         }
-    }
 
-    public static void removeFinder(@NonNull final EventsFinder eventsFinder) {
-        synchronized (sInstance.mEventsFinders) {
-            Vector<EventsFinder> eventsFinders = sInstance.mEventsFinders.get(eventsFinder.type);
-            if (eventsFinders != null) {
-                eventsFinders.remove(eventsFinder);
-            }
-            if (eventsFinders != null && eventsFinders.size() == 0) {
-                sInstance.mEventsFinders.remove(eventsFinder.type);
-            }
-            if (DEBUG) {
-                Log.e(TAG, TAG + " remove finder " + eventsFinder.type + " filters=" + sInstance.mEventsFinders);
+        public void setRecyclable(final int eventType, final boolean recyclable) {
+            Bus.setRecyclable(mBus, eventType, recyclable);
+        }
+
+        public void setSticky(final int eventType, final boolean sticky) {
+            Bus.setSticky(mBus, eventType, sticky);
+        }
+
+        public void removeStickyResult(final int eventType) {
+            Bus.removeStickyResult(mBus, eventType);
+        }
+
+        public void clearStickyResults() {
+            Bus.clearStickyResults(mBus);
+        }
+
+        public void setMetrics(@Nullable final BusMetrics metrics) {
+            mBus.mMetrics = metrics;
+        }
+
+        @Nullable
+        public BusMetrics getMetrics() {
+            return mBus.mMetrics;
+        }
+
+        public void setFlightRecorder(@Nullable final FlightRecorder recorder) {
+            mBus.mRecorder = recorder;
+        }
+
+        @Nullable
+        public FlightRecorder getFlightRecorder() {
+            return mBus.mRecorder;
+        }
+
+        public void sendResult(final int eventType) {
+            Bus.sendResult(mBus, eventType, null, null, null);
+        }
+
+        public void sendResult(final int eventType,
+                               @Nullable final Bundle bundleInput,
+                               @Nullable final Bundle bundleOutput) {
+            Bus.sendResult(mBus, eventType, bundleInput, bundleOutput, null);
+        }
+
+        public void sendResult(final int eventType, @Nullable final Object payload) {
+            Bus.sendResult(mBus, eventType, null, null, payload);
+        }
+
+        public void sendRequest(final int eventType) {
+            Bus.sendRequest(mBus, new BusEvent(eventType, null, null), false);
+        }
+
+        public void sendRequest(final int eventType,
+                                @Nullable final Bundle bundleInput,
+                                @Nullable final Bundle bundleOutput) {
+            Bus.sendRequest(mBus, new BusEvent(eventType, bundleInput, bundleOutput), false);
+        }
+
+        public void sendRequest(final int eventType,
+                                @Nullable final Bundle bundleInput,
+                                @Nullable final Bundle bundleOutput,
+                                final boolean canFind) {
+            Bus.sendRequest(mBus, new BusEvent(eventType, bundleInput, bundleOutput), canFind);
+        }
+
+        public void sendRequest(final int eventType, @Nullable final Object payload) {
+            Bus.sendRequest(mBus, BusEvent.withPayload(eventType, payload), false);
+        }
+
+        @NonNull
+        public RequestHandle sendCancellableRequest(final int eventType,
+                                                    @Nullable final Bundle bundleInput,
+                                                    @Nullable final Bundle bundleOutput,
+                                                    final long timeoutMillis) {
+            BusEvent event = new BusEvent(eventType, bundleInput, bundleOutput);
+            return Bus.sendCancellableRequest(mBus, event, false, timeoutMillis);
+        }
+
+        @NonNull
+        public RequestHandle sendCancellableRequest(final int eventType,
+                                                    @Nullable final Bundle bundleInput,
+                                                    @Nullable final Bundle bundleOutput,
+                                                    final boolean canFind,
+                                                    final long timeoutMillis) {
+            BusEvent event = new BusEvent(eventType, bundleInput, bundleOutput);
+            return Bus.sendCancellableRequest(mBus, event, canFind, timeoutMillis);
+        }
+
+        @NonNull
+        public RequestHandle sendCancellableRequest(final int eventType,
+                                                    @Nullable final Object payload,
+                                                    final long timeoutMillis) {
+            return Bus.sendCancellableRequest(mBus, BusEvent.withPayload(eventType, payload), false, timeoutMillis);
+        }
+
+        @NonNull
+        public RequestHandle sendGatherRequest(final int eventType,
+                                               @Nullable final Bundle bundleInput,
+                                               @NonNull final Gather gather,
+                                               final long timeoutMillis) {
+            return Bus.sendGatherRequest(mBus, eventType, bundleInput, gather, timeoutMillis);
+        }
+
+        @NonNull
+        public RequestHandle sendStreamingRequest(final int eventType,
+                                                  @Nullable final Bundle bundleInput,
+                                                  @NonNull final Stream stream,
+                                                  final long timeoutMillis) {
+            return Bus.sendStreamingRequest(mBus, eventType, bundleInput, stream, timeoutMillis);
+        }
+
+        /**
+         * Unsubscribes every receiver, drops the sticky and cached results and shuts the scheduler down: requests
+         * still queued are dropped, running handlers finish. Subscribing or sending requests afterwards throws
+         * {@link IllegalStateException}.
+         */
+        public void close() {
+            Bus.close(mBus);
+        }
+    }
+
+    // ---------- ------------ ----------
+    // ---------- SUBSCRIPTION ----------
+    // ---------- ------------ ----------
+
+    /**
+     * Snapshot of a subscription returned by {@link Bus#getSubscriptions()}. {@code leaked} is set for receivers whose
+     * owner, the activity passed to {@link Bus#subscribe(BusResultReceiver, Activity)}, is already finishing or
+     * destroyed while they are still subscribed.
+     */
+    public final static class Subscription {
+
+        public static final int STRONG = 0;
+        public static final int WEAK = 1;
+        public static final int SCOPED = 2;
+
+        @NonNull
+        public final String receiverClass;
+        public final int mode;
+        public final long subscribedAtMillis;
+        public final boolean leaked;
+
+        private Subscription(@NonNull final BusResultReceiver receiver, final int mode, final long subscribedAtMillis,
+                             @Nullable final Activity owner) {
+            this.receiverClass = receiver.getClass().getName();
+            this.mode = mode;
+            this.subscribedAtMillis = subscribedAtMillis;
+            this.leaked = owner != null && isGone(owner);
+        }
+
+        private static boolean isGone(@NonNull final Activity activity) {
+            return activity.isFinishing()
+                    || (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR1 && activity.isDestroyed());
+        }
+
+        @Override
+        public String toString() {
+            return receiverClass + (mode == STRONG ? " strong" : mode == WEAK ? " weak" : " scoped")
+                    + " age=" + (SystemClock.elapsedRealtime() - subscribedAtMillis) + "ms" + (leaked ? " LEAKED" : "");
+        }
+    }
+
+    // ---------- --------------- ----------
+    // ---------- BUS APPLICATION ----------
+    // ---------- --------------- ----------
+
+    public static abstract class BusApplication extends Application {
+
+        private static final String TAG_ERROR_INIT_SERVICES = "error init android bus";
+
+        public abstract List<BusRequestReceiver> createListInboxLayers();
+
+        @NonNull
+        protected BusScheduler createScheduler() {
+            return new BusScheduler();
+        }
+
+        @NonNull
+        protected StickyCache createStickyCache() {
+            return new StickyCache();
+        }
+
+        @NonNull
+        protected ResultCache createResultCache() {
+            return new ResultCache();
+        }
+
+        /**
+         * The index generated with the processor option {@code androidbus.index}, e.g. {@code new MyBusIndex()}.
+         * It lists the services instead of scanning the manifest and finds dispatchers without {@code Class.forName}.
+         */
+        @Nullable
+        protected BusIndex createIndex() {
+            return null;
+        }
+
+        /**
+         * Return a {@link RequestJournal} to keep requests of some types across process death, e.g.
+         * {@code new Bus.RequestJournal(new File(getFilesDir(), "bus.journal"), UPLOAD)}.
+         */
+        @Nullable
+        protected RequestJournal createJournal() {
+            return null;
+        }
+
+        /**
+         * When true, services and inbox layers are scanned on a background thread instead of in {@link #onCreate()};
+         * the first request waits for it if it is not done yet.
+         */
+        protected boolean isLazyInit() {
+            return false;
+        }
+
+        /**
+         * Always on by default, return null to turn it off or a bigger {@link FlightRecorder} to keep more history.
+         */
+        @Nullable
+        protected FlightRecorder createFlightRecorder() {
+            return new FlightRecorder();
+        }
+
+        @Override
+        public void onCreate() {
+            super.onCreate();
+            BusIndex index = createIndex();
+            Bus.initInstance(this, createListInboxLayers(), index, createScheduler(), createStickyCache(),
+                    createResultCache(), createJournal(), isLazyInit());
+            setFlightRecorder(createFlightRecorder());
+        }
+
+        @SuppressWarnings("unchecked")
+        @NonNull
+        private static Class<? extends BusResultService>[] scanServices(@NonNull final Context context) {
+            Class<? extends BusResultService>[] services;
+            try {
+                PackageManager manager = context.getPackageManager();
+                assert manager != null;
+                PackageInfo packageInfo = manager.getPackageInfo(context.getPackageName(), PackageManager.GET_SERVICES);
+                ArrayList<Class> busResultReceivers = new ArrayList<>();
+                if (packageInfo.services != null) {
+                    for (ServiceInfo serviceInfo : packageInfo.services) {
+                        Class clazz = Class.forName(serviceInfo.name);
+                        if (BusResultService.class.isAssignableFrom(clazz)) {
+                            busResultReceivers.add(clazz);
+                        }
+                    }
+                }
+                services = busResultReceivers.toArray(new Class[busResultReceivers.size()]);
+            } catch (PackageManager.NameNotFoundException | ClassNotFoundException e) {
+                services = new Class[0];
+                Log.e(TAG_ERROR_INIT_SERVICES, TAG_ERROR_INIT_SERVICES, e);
+            }
+            return services;
+        }
+    }
+
+    // ---------- ------------------ ----------
+    // ---------- BUS RESULT SERVICE ----------
+    // ---------- ------------------ ----------
+
+    /**
+     * Handles its requests in order on a worker thread of its own. Requests sent in a burst arrive in a single intent,
+     * {@link #getMaxQueueDepth()} bounds the requests waiting for the worker and the service stops itself once
+     * they are all handled, unless {@link #isStopWhenIdle()} is overridden.
+     */
+    public static abstract class BusResultService extends Service implements BusRequestReceiver {
+
+        private static final String TAG_QUEUE_FULL = "bus service queue full";
+
+        @Nullable
+        private HandlerThread mThread;
+        @Nullable
+        private Handler mHandler;
+        @NonNull
+        private final AtomicInteger mQueued = new AtomicInteger();
+
+        @Override
+        public void onCreate() {
+            super.onCreate();
+            mThread = new HandlerThread(getClass().getSimpleName(), Process.THREAD_PRIORITY_BACKGROUND);
+            mThread.start();
+            mHandler = new Handler(mThread.getLooper(), new Handler.Callback() {
+                @Override
+                public boolean handleMessage(@NonNull final Message msg) {
+                    Intent intent = (Intent) msg.obj;
+                    Parcelable[] events = intent.getParcelableArrayExtra(Bus.EVENTS_FOR_SERVICE);
+                    boolean[] tracked = intent.getBooleanArrayExtra(Bus.EVENTS_TRACKED);
+                    for (int i = 0; i < msg.arg2; i++) {
+                        BusEvent event = (BusEvent) events[i];
+                        try {
+                            BusAnnotationProcessor.processEventAnnotationRequest(event, BusResultService.this);
+                        } finally {
+                            mQueued.decrementAndGet();
+                            onServiceRequestDone(event.getType(), tracked != null && tracked[i], false);
+                        }
+                    }
+                    if (isStopWhenIdle()) {
+                        // no-op unless this was the last start
+                        stopSelf(msg.arg1);
+                    }
+                    return true;
+                }
+            });
+        }
+
+        @Override
+        public int onStartCommand(@Nullable final Intent intent, final int flags, final int startId) {
+            Parcelable[] events;
+            if (intent == null || mHandler == null || (events = intent.getParcelableArrayExtra(Bus.EVENTS_FOR_SERVICE)) == null) {
+                return super.onStartCommand(intent, flags, startId);
+            }
+            int accepted = events.length;
+            int maxDepth = getMaxQueueDepth();
+            if (maxDepth > 0) {
+                accepted = Math.min(accepted, Math.max(0, maxDepth - mQueued.get()));
+                if (accepted < events.length) {
+                    Log.w(TAG_QUEUE_FULL, getClass().getName() + " dropped " + (events.length - accepted) + " requests");
+                    boolean[] tracked = intent.getBooleanArrayExtra(Bus.EVENTS_TRACKED);
+                    for (int i = accepted; i < events.length; i++) {
+                        onServiceRequestDone(((BusEvent) events[i]).getType(), tracked != null && tracked[i], true);
+                    }
+                }
+            }
+            mQueued.addAndGet(accepted);
+            // sent even when everything was dropped, so the service still stops when idle
+            mHandler.obtainMessage(0, startId, accepted, intent).sendToTarget();
+            return isAutoRestart() ? START_STICKY : START_NOT_STICKY;
+        }
+
+        @Override
+        public void onDestroy() {
+            if (mThread != null) {
+                mThread.quit();
+            }
+            super.onDestroy();
+        }
+
+        protected boolean isAutoRestart() {
+            return false;
+        }
+
+        protected boolean isStopWhenIdle() {
+            return true;
+        }
+
+        /**
+         * Requests waiting for the worker beyond this are dropped, 0 for no limit.
+         */
+        protected int getMaxQueueDepth() {
+            return 0;
+        }
+    }
+
+    // ---------- ------------- ----------
+    // ---------- BUS SCHEDULER ----------
+    // ---------- ------------- ----------
+
+    /**
+     * Bounded pool for request handlers. Every {@link EventTakerRequest#priority()} has its own queue and
+     * higher queues are always drained first. Event types can be limited to a number of concurrent handlers,
+     * e.g. {@code setConcurrencyLimit(SYNC, 1)}; their extra requests wait without holding a worker. Workers are
+     * started on demand and stop after {@link #setKeepAlive(long) idling} for a while.
+     */
+    public final static class BusScheduler {
+
+        private static final String THREAD_NAME = "bus-worker-";
+        private static final long DEFAULT_KEEP_ALIVE_MILLIS = 30000;
+
+        private final int mMaxThreads;
+        @NonNull
+        private final Object mLock = new Object();
+        @NonNull
+        private final ArrayDeque<Task>[] mQueues;
+        @NonNull
+        private final SparseIntArray mLimits = new SparseIntArray();
+        @NonNull
+        private final SparseIntArray mRunning = new SparseIntArray();
+        @NonNull
+        private final SparseArray<ArrayDeque<Task>> mParked = new SparseArray<>();
+        private int mThreads = 0;
+        private int mIdleThreads = 0;
+        private int mStartedThreads = 0;
+        private long mKeepAliveMillis = DEFAULT_KEEP_ALIVE_MILLIS;
+        private boolean mShutdown = false;
+
+        public BusScheduler() {
+            this(Math.max(2, Math.min(4, Runtime.getRuntime().availableProcessors())));
+        }
+
+        @SuppressWarnings("unchecked")
+        public BusScheduler(final int maxThreads) {
+            if (maxThreads <= 0) {
+                throw new IllegalArgumentException("maxThreads=" + maxThreads);
+            }
+            mMaxThreads = maxThreads;
+            mQueues = new ArrayDeque[PRIORITY_HIGH + 1];
+            for (int i = 0; i < mQueues.length; i++) {
+                mQueues[i] = new ArrayDeque<>();
+            }
+        }
+
+        @NonNull
+        public BusScheduler setConcurrencyLimit(final int eventType, final int limit) {
+            synchronized (mLock) {
+                if (limit > 0) {
+                    mLimits.put(eventType, limit);
+                } else {
+                    mLimits.delete(eventType);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Workers idle for longer than this stop, 0 keeps them until {@link #shutdown()}.
+         */
+        @NonNull
+        public BusScheduler setKeepAlive(final long keepAliveMillis) {
+            synchronized (mLock) {
+                mKeepAliveMillis = Math.max(0, keepAliveMillis);
+                mLock.notifyAll();
+            }
+            return this;
+        }
+
+        /**
+         * Takes no more requests, the workers stop once the ones already queued are done.
+         */
+        public void shutdown() {
+            synchronized (mLock) {
+                mShutdown = true;
+                mLock.notifyAll();
+            }
+        }
+
+        public boolean isShutdown() {
+            synchronized (mLock) {
+                return mShutdown;
+            }
+        }
+
+        void schedule(@NonNull final Task task) {
+            synchronized (mLock) {
+                if (mShutdown) {
+                    throw new IllegalStateException("scheduler is shut down");
+                }
+                mQueues[task.priority].addLast(task);
+                if (mIdleThreads > 0) {
+                    mLock.notify();
+                } else if (mThreads < mMaxThreads) {
+                    startWorker();
+                }
+            }
+        }
+
+        // guarded by mLock
+        private void startWorker() {
+            mThreads++;
+            new Worker(THREAD_NAME + mStartedThreads++).start();
+        }
+
+        /**
+         * @return null once the worker should stop
+         */
+        @Nullable
+        private Task take() throws InterruptedException {
+            synchronized (mLock) {
+                long idleSince = System.nanoTime();
+                while (true) {
+                    Task task = poll();
+                    if (task != null) {
+                        return task;
+                    }
+                    long waitMillis = 0;
+                    if (mKeepAliveMillis > 0) {
+                        waitMillis = mKeepAliveMillis - (System.nanoTime() - idleSince) / 1000000L;
+                        if (waitMillis <= 0) {
+                            return null;
+                        }
+                    }
+                    if (mShutdown) {
+                        return null;
+                    }
+                    mIdleThreads++;
+                    try {
+                        mLock.wait(waitMillis);
+                    } finally {
+                        mIdleThreads--;
+                    }
+                }
+            }
+        }
+
+        // guarded by mLock
+        private boolean hasQueued() {
+            for (ArrayDeque<Task> queue : mQueues) {
+                if (!queue.isEmpty()) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        @Nullable
+        private Task poll() {
+            for (int i = mQueues.length - 1; i >= 0; i--) {
+                Task task;
+                while ((task = mQueues[i].pollFirst()) != null) {
+                    int limit = mLimits.get(task.type, 0);
+                    if (limit == 0) {
+                        return task;
+                    }
+                    int running = mRunning.get(task.type, 0);
+                    if (running < limit) {
+                        mRunning.put(task.type, running + 1);
+                        task.limited = true;
+                        return task;
+                    }
+                    ArrayDeque<Task> parked = mParked.get(task.type);
+                    if (parked == null) {
+                        parked = new ArrayDeque<>();
+                        mParked.put(task.type, parked);
+                    }
+                    parked.addLast(task);
+                }
+            }
+            return null;
+        }
+
+        private void finish(@NonNull final Task task) {
+            if (!task.limited) {
+                return;
+            }
+            synchronized (mLock) {
+                mRunning.put(task.type, mRunning.get(task.type) - 1);
+                ArrayDeque<Task> parked = mParked.get(task.type);
+                Task next = parked == null ? null : parked.pollFirst();
+                if (next != null) {
+                    mQueues[next.priority].addFirst(next);
+                }
+            }
+        }
+
+        static abstract class Task implements Runnable {
+
+            final int type;
+            final int priority;
+            boolean limited = false;
+
+            Task(final int type, final int priority) {
+                this.type = type;
+                this.priority = Math.max(PRIORITY_LOW, Math.min(PRIORITY_HIGH, priority));
+            }
+        }
+
+        private final class Worker extends Thread {
+
+            private Worker(@NonNull final String name) {
+                super(name);
+            }
+
+            @Override
+            public void run() {
+                int priorityMain = Looper.getMainLooper().getThread().getPriority();
+                if (priorityMain <= getPriority()) {
+                    setPriority(priorityMain > Thread.MIN_PRIORITY ? priorityMain - 1 : priorityMain);
+                }
+                try {
+                    Task task;
+                    while ((task = take()) != null) {
+                        try {
+                            task.run();
+                        } finally {
+                            finish(task);
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                    // worker is stopped
+                } finally {
+                    synchronized (mLock) {
+                        mThreads--;
+                        // a task queued while this one was stopping, or left by a handler that threw
+                        if (hasQueued() && mIdleThreads == 0) {
+                            startWorker();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    // ---------- ------------ ----------
+    // ---------- STICKY CACHE ----------
+    // ---------- ------------ ----------
+
+    /**
+     * Keeps the last result of every {@link Bus#setSticky(int, boolean) sticky} type and replays it to receivers
+     * subscribing later. Bounded by {@code maxSize}, measured with {@link #sizeOf(int, BusEvent)} (entries by
+     * default); the least recently sent or replayed types are evicted first.
+     */
+    public static class StickyCache {
+
+        private static final int DEFAULT_MAX_SIZE = 32;
+
+        private final int mMaxSize;
+        private int mSize = 0;
+        @NonNull
+        private final SparseBooleanArray mStickyTypes = new SparseBooleanArray();
+        @NonNull
+        private final LinkedHashMap<Integer, BusEvent> mEvents = new LinkedHashMap<>(16, 0.75f, true);
+
+        public StickyCache() {
+            this(DEFAULT_MAX_SIZE);
+        }
+
+        public StickyCache(final int maxSize) {
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("maxSize=" + maxSize);
+            }
+            mMaxSize = maxSize;
+        }
+
+        protected int sizeOf(final int eventType, @NonNull final BusEvent event) {
+            return 1;
+        }
+
+        private boolean isSticky(final int eventType) {
+            return mStickyTypes.get(eventType);
+        }
+
+        private void setSticky(final int eventType, final boolean sticky) {
+            if (sticky) {
+                mStickyTypes.put(eventType, true);
+            } else {
+                mStickyTypes.delete(eventType);
+                remove(eventType);
+            }
+        }
+
+        private void put(@NonNull final BusEvent event) {
+            BusEvent previous = mEvents.put(event.getType(), event);
+            if (previous != null) {
+                mSize -= sizeOf(previous.getType(), previous);
+            }
+            mSize += sizeOf(event.getType(), event);
+            Iterator<BusEvent> iterator = mEvents.values().iterator();
+            while (mSize > mMaxSize && iterator.hasNext()) {
+                BusEvent eldest = iterator.next();
+                iterator.remove();
+                mSize -= sizeOf(eldest.getType(), eldest);
+                if (DEBUG) {
+                    Log.e(TAG, TAG + " evict sticky " + eldest.getType() + " size=" + mSize);
+                }
+            }
+        }
+
+        private void remove(final int eventType) {
+            BusEvent previous = mEvents.remove(eventType);
+            if (previous != null) {
+                mSize -= sizeOf(eventType, previous);
+            }
+        }
+
+        private void clear() {
+            mEvents.clear();
+            mSize = 0;
+        }
+
+        /**
+         * @return the events for {@link #THREAD_POSTING} handlers, for the caller to deliver once it leaves the lock
+         */
+        @Nullable
+        private ArrayList<BusEvent> replay(@NonNull final ResultHandler handler) {
+            if (mEvents.isEmpty()) {
+                return null;
+            }
+            ArrayList<BusEvent> posting = null;
+            if (handler.table.resultAll != null) {
+                for (BusEvent event : mEvents.values()) {
+                    if (!handler.post(event)) {
+                        posting = add(posting, event);
+                    }
+                }
+                return posting;
+            }
+            SparseArray<BusAnnotationProcessor.Invoker> results = handler.table.results;
+            for (int i = 0; i < results.size(); i++) {
+                BusEvent event = mEvents.get(results.keyAt(i));
+                if (event != null && !handler.post(event)) {
+                    posting = add(posting, event);
+                }
+            }
+            if (!handler.table.patterns.isEmpty()) {
+                for (BusEvent event : mEvents.values()) {
+                    if (results.get(event.getType()) == null && handler.table.matchesPattern(event.getType())
+                            && !handler.post(event)) {
+                        posting = add(posting, event);
+                    }
+                }
+            }
+            return posting;
+        }
+
+        @NonNull
+        private static ArrayList<BusEvent> add(@Nullable final ArrayList<BusEvent> events, @NonNull final BusEvent event) {
+            ArrayList<BusEvent> result = events == null ? new ArrayList<BusEvent>() : events;
+            result.add(event);
+            return result;
+        }
+    }
+
+    // ---------- ------------ ----------
+    // ---------- RESULT CACHE ----------
+    // ---------- ------------ ----------
+
+    /**
+     * Outputs of request handlers marked with {@link EventTakerRequest#cacheResult()}, by handler, input bundle and
+     * payload. Bounded by {@code maxSize}, measured with {@link #sizeOf(int, Bundle)} (entries by default); the least
+     * recently used outputs are evicted first.
+     */
+    public static class ResultCache {
+
+        private static final int DEFAULT_MAX_SIZE = 64;
+
+        private final int mMaxSize;
+        // guarded by this
+        private int mSize = 0;
+        private long mHits = 0;
+        private long mMisses = 0;
+        private long mEvictions = 0;
+        @NonNull
+        private final LinkedHashMap<CacheKey, CachedResult> mResults = new LinkedHashMap<>(16, 0.75f, true);
+
+        public ResultCache() {
+            this(DEFAULT_MAX_SIZE);
+        }
+
+        public ResultCache(final int maxSize) {
+            if (maxSize <= 0) {
+                throw new IllegalArgumentException("maxSize=" + maxSize);
+            }
+            mMaxSize = maxSize;
+        }
+
+        protected int sizeOf(final int resultType, @NonNull final Bundle output) {
+            return 1;
+        }
+
+        public synchronized long getHitCount() {
+            return mHits;
+        }
+
+        public synchronized long getMissCount() {
+            return mMisses;
+        }
+
+        public synchronized long getEvictionCount() {
+            return mEvictions;
+        }
+
+        public synchronized void clear() {
+            mResults.clear();
+            mSize = 0;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "hits=" + mHits + " misses=" + mMisses + " evictions=" + mEvictions + " size=" + mSize;
+        }
+
+        @Nullable
+        private synchronized Bundle get(@NonNull final CacheKey key) {
+            CachedResult result = mResults.get(key);
+            if (result != null && result.expiresAtNanos != 0 && System.nanoTime() - result.expiresAtNanos >= 0) {
+                mResults.remove(key);
+                mSize -= result.size;
+                result = null;
+            }
+            if (result == null) {
+                mMisses++;
+                return null;
+            }
+            mHits++;
+            return result.output;
+        }
+
+        private synchronized void put(@NonNull final CacheKey key, final int resultType, @NonNull final Bundle output,
+                                      final long ttlMillis) {
+            long expiresAtNanos = ttlMillis > 0 ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ttlMillis) : 0;
+            CachedResult result = new CachedResult(output, expiresAtNanos, sizeOf(resultType, output));
+            CachedResult previous = mResults.put(key, result);
+            if (previous != null) {
+                mSize -= previous.size;
+            }
+            mSize += result.size;
+            Iterator<CachedResult> iterator = mResults.values().iterator();
+            while (mSize > mMaxSize && iterator.hasNext()) {
+                CachedResult eldest = iterator.next();
+                iterator.remove();
+                mSize -= eldest.size;
+                mEvictions++;
+            }
+        }
+    }
+
+    private final static class CacheKey {
+
+        @NonNull
+        private final RequestTarget target;
+        @NonNull
+        private final Bundle input;
+        @Nullable
+        private final Object payload;
+        private final int hash;
+
+        private CacheKey(@NonNull final RequestTarget target, @NonNull final Bundle input,
+                         @Nullable final Object payload) {
+            this.target = target;
+            this.input = input;
+            this.payload = payload;
+            this.hash = 31 * (31 * System.identityHashCode(target) + bundleHashCode(input)) + valueHashCode(payload);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (!(o instanceof CacheKey)) {
+                return false;
+            }
+            CacheKey key = (CacheKey) o;
+            return hash == key.hash && target == key.target && bundleEquals(input, key.input)
+                    && valueEquals(payload, key.payload);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+
+    private final static class CachedResult {
+
+        @NonNull
+        private final Bundle output;
+        private final long expiresAtNanos;
+        private final int size;
+
+        private CachedResult(@NonNull final Bundle output, final long expiresAtNanos, final int size) {
+            this.output = output;
+            this.expiresAtNanos = expiresAtNanos;
+            this.size = size;
+        }
+    }
+
+    // ---------- --------------- ----------
+    // ---------- REQUEST JOURNAL ----------
+    // ---------- --------------- ----------
+
+    /**
+     * Persists requests of the given types until every request handler of the inbox layers finished with them, and
+     * sends the unfinished ones again when the bus starts after the process was killed. Requests are appended to a
+     * memory mapped file, which survives the process dying; {@code force()} to the disk is grouped for all requests
+     * appended while the previous one ran. Services are not covered, see {@link BusResultService#isAutoRestart()}:
+     * replayed requests are sent to the inbox layers only, as the services got them the first time.
+     */
+    public final static class RequestJournal {
+
+        private static final String TAG_ERROR_JOURNAL = "error android bus journal";
+        private static final String THREAD_NAME = "bus-journal";
+        private static final int DEFAULT_CAPACITY = 64 * 1024;
+        private static final int MAGIC = 0x42554a31;
+        // magic, then records of [length][state][parceled event], a zero length ends the log
+        private static final int HEADER_SIZE = 4;
+        private static final int RECORD_HEADER_SIZE = 5;
+        private static final byte STATE_PENDING = 1;
+        private static final byte STATE_DONE = 2;
+        private static final byte STATE_MASK = 0x0F;
+        // or-ed to the state of requests sent with canFind
+        private static final byte FLAG_CAN_FIND = 0x10;
+        private static final int MSG_REPLAY = 0;
+        private static final int MSG_FORCE = 1;
+
+        @NonNull
+        private final File mFile;
+        @NonNull
+        private final SparseBooleanArray mTypes = new SparseBooleanArray();
+        @Nullable
+        private Bus mBus;
+        @Nullable
+        private Handler mHandler;
+        // guarded by this
+        @Nullable
+        private FileChannel mChannel;
+        @Nullable
+        private MappedByteBuffer mBuffer;
+        private int mCapacity;
+        private int mEnd;
+        private boolean mFailed = false;
+        private boolean mForcePending = false;
+        @NonNull
+        private final LinkedHashSet<JournalEntry> mLive = new LinkedHashSet<>();
+        // requests left from the previous process, sent again by replay()
+        @Nullable
+        private ArrayList<BusEvent> mReplay;
+
+        public RequestJournal(@NonNull final File file, @NonNull final int... types) {
+            mFile = file;
+            mCapacity = DEFAULT_CAPACITY;
+            for (int type : types) {
+                mTypes.put(type, true);
+            }
+        }
+
+        /**
+         * Initial size of the file, it grows when the unfinished requests do not fit.
+         */
+        @NonNull
+        public RequestJournal setCapacity(final int capacity) {
+            mCapacity = Math.max(capacity, HEADER_SIZE + RECORD_HEADER_SIZE + 4);
+            return this;
+        }
+
+        public boolean isDurable(final int eventType) {
+            return mTypes.get(eventType);
+        }
+
+        private void start(@NonNull final Bus bus) {
+            mBus = bus;
+            HandlerThread thread = new HandlerThread(THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+            mHandler = new Handler(thread.getLooper(), new Handler.Callback() {
+                @Override
+                public boolean handleMessage(@NonNull final Message msg) {
+                    if (msg.what == MSG_REPLAY) {
+                        replay();
+                    } else {
+                        force();
+                    }
+                    return true;
+                }
+            });
+            mHandler.sendEmptyMessage(MSG_REPLAY);
+        }
+
+        private void replay() {
+            ArrayList<BusEvent> events;
+            synchronized (this) {
+                if (!open()) {
+                    return;
+                }
+                events = mReplay;
+                mReplay = null;
+            }
+            if (events == null) {
+                return;
+            }
+            if (DEBUG) {
+                Log.e(TAG, TAG + " replay " + events.size() + " requests");
+            }
+            for (BusEvent event : events) {
+                sendRequest(mBus, event, event.tracked);
+            }
+        }
+
+        private void force() {
+            MappedByteBuffer buffer;
+            synchronized (this) {
+                mForcePending = false;
+                buffer = mBuffer;
+            }
+            if (buffer != null) {
+                buffer.force();
+            }
+        }
+
+        // ---------- FILE PART, guarded by this ----------
+
+        private boolean open() {
+            if (mBuffer != null || mFailed) {
+                return !mFailed;
+            }
+            try {
+                if (mFile.length() > mCapacity) {
+                    mCapacity = (int) mFile.length();
+                }
+                mChannel = new RandomAccessFile(mFile, "rw").getChannel();
+                mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mCapacity);
+            } catch (IOException e) {
+                Log.e(TAG_ERROR_JOURNAL, TAG_ERROR_JOURNAL, e);
+                mFailed = true;
+                return false;
+            }
+            mEnd = HEADER_SIZE;
+            if (mBuffer.getInt(0) == MAGIC) {
+                mReplay = read();
+            } else {
+                mBuffer.putInt(0, MAGIC);
+            }
+            mBuffer.putInt(mEnd, 0);
+            return true;
+        }
+
+        // the unfinished records stay where they are until their replayed requests are done
+        @NonNull
+        private ArrayList<BusEvent> read() {
+            ArrayList<BusEvent> events = new ArrayList<>();
+            int offset = HEADER_SIZE;
+            while (offset + RECORD_HEADER_SIZE <= mCapacity) {
+                int length = mBuffer.getInt(offset);
+                if (length <= 0 || offset + RECORD_HEADER_SIZE + length > mCapacity) {
+                    break;
+                }
+                byte state = mBuffer.get(offset + 4);
+                if ((state & STATE_MASK) == STATE_PENDING) {
+                    byte[] data = new byte[length];
+                    ByteBuffer record = mBuffer.duplicate();
+                    record.position(offset + RECORD_HEADER_SIZE);
+                    record.get(data);
+                    Parcel parcel = Parcel.obtain();
+                    try {
+                        parcel.unmarshall(data, 0, length);
+                        parcel.setDataPosition(0);
+                        BusEvent event = BusEvent.CREATOR.createFromParcel(parcel);
+                        event.tracked = (state & FLAG_CAN_FIND) != 0;
+                        event.journalEntry = new JournalEntry(offset);
+                        mLive.add(event.journalEntry);
+                        events.add(event);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG_ERROR_JOURNAL, TAG_ERROR_JOURNAL, e);
+                        mBuffer.put(offset + 4, STATE_DONE);
+                    } finally {
+                        parcel.recycle();
+                    }
+                }
+                offset += RECORD_HEADER_SIZE + length;
+            }
+            mEnd = offset;
+            return events;
+        }
+
+        /**
+         * Appends the request unless it was replayed from the file. It is done once released {@code handlers + 1}
+         * times. The request is parceled on the sending thread, but outside the lock.
+         */
+        @Nullable
+        private JournalEntry track(@NonNull final BusEvent event, final int handlers, final boolean canFind) {
+            // set by read() on the journal thread, which also replays
+            JournalEntry entry = event.journalEntry;
+            byte[] data = null;
+            if (entry == null && (handlers == 0 || (data = marshall(event)) == null)) {
+                return null;
+            }
+            synchronized (this) {
+                if (entry == null) {
+                    if ((entry = append(data, canFind)) == null) {
+                        return null;
+                    }
+                    event.journalEntry = entry;
+                }
+                entry.pending = handlers + 1;
+                return entry;
+            }
+        }
+
+        /**
+         * @return null if the request can't be kept, it is then not durable
+         */
+        @Nullable
+        private static byte[] marshall(@NonNull final BusEvent event) {
+            if (event.payload != null && !(event.payload instanceof Parcelable)) {
+                Log.w(TAG_ERROR_JOURNAL, "request " + event.getType() + " is not kept, its payload "
+                        + event.payload.getClass().getName() + " is not Parcelable");
+                return null;
+            }
+            Parcel parcel = Parcel.obtain();
+            try {
+                event.writeToParcel(parcel, 0);
+                return parcel.marshall();
+            } catch (RuntimeException e) {
+                Log.w(TAG_ERROR_JOURNAL, "request " + event.getType() + " is not kept", e);
+                return null;
+            } finally {
+                parcel.recycle();
+            }
+        }
+
+        @Nullable
+        private JournalEntry append(@NonNull final byte[] data, final boolean canFind) {
+            if (!open()) {
+                return null;
+            }
+            // record and the zero length after it
+            int size = RECORD_HEADER_SIZE + data.length + 4;
+            if (mEnd + size > mCapacity) {
+                compact();
+                if (mEnd + size > mCapacity && !grow(mEnd + size)) {
+                    return null;
+                }
+            }
+            JournalEntry entry = new JournalEntry(mEnd);
+            ByteBuffer record = mBuffer.duplicate();
+            record.position(mEnd + 4);
+            record.put(canFind ? (byte) (STATE_PENDING | FLAG_CAN_FIND) : STATE_PENDING);
+            record.put(data);
+            record.putInt(0);
+            // the length goes last, so a record cut short by a crash ends the log
+            mBuffer.putInt(mEnd, data.length);
+            mEnd += RECORD_HEADER_SIZE + data.length;
+            mLive.add(entry);
+            if (!mForcePending && mHandler != null) {
+                mForcePending = true;
+                mHandler.sendEmptyMessage(MSG_FORCE);
+            }
+            return entry;
+        }
+
+        private synchronized void release(@NonNull final JournalEntry entry) {
+            if (--entry.pending > 0 || !mLive.remove(entry)) {
+                return;
+            }
+            mBuffer.put(entry.offset + 4, STATE_DONE);
+            if (mLive.isEmpty()) {
+                mBuffer.putInt(HEADER_SIZE, 0);
+                mEnd = HEADER_SIZE;
+            }
+        }
+
+        // moves the unfinished records to the front
+        private void compact() {
+            int end = HEADER_SIZE;
+            for (JournalEntry entry : mLive) {
+                int length = RECORD_HEADER_SIZE + mBuffer.getInt(entry.offset);
+                if (entry.offset != end) {
+                    byte[] record = new byte[length];
+                    ByteBuffer from = mBuffer.duplicate();
+                    from.position(entry.offset);
+                    from.get(record);
+                    ByteBuffer to = mBuffer.duplicate();
+                    to.position(end);
+                    to.put(record);
+                    entry.offset = end;
+                }
+                end += length;
+            }
+            mBuffer.putInt(end, 0);
+            mEnd = end;
+        }
+
+        private boolean grow(final int minCapacity) {
+            int capacity = Math.max(minCapacity, mCapacity * 2);
+            try {
+                mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+            } catch (IOException e) {
+                Log.e(TAG_ERROR_JOURNAL, TAG_ERROR_JOURNAL, e);
+                return false;
+            }
+            mCapacity = capacity;
+            return true;
+        }
+    }
+
+    // ---------- ----------- ----------
+    // ---------- BUS METRICS ----------
+    // ---------- ----------- ----------
+
+    public interface MetricsSink {
+        void onRequestExecuted(final int eventType, final long queueWaitNanos, final long handlerNanos);
+
+        void onResultDelivered(final int eventType, @NonNull final BusResultReceiver receiver, final long deliveryNanos);
+    }
+
+    /**
+     * Per event type counters, enabled with {@link Bus#setMetrics(BusMetrics)}. While no metrics are set the bus only
+     * pays a volatile read per request and per delivered result.
+     */
+    public final static class BusMetrics {
+
+        /**
+         * Upper bounds of the handler time histogram buckets, the last bucket holds everything slower.
+         */
+        public static final long[] HISTOGRAM_BOUNDS_MS = {1, 2, 4, 8, 16, 32, 64, 128, 256, 512, 1024};
+
+        @Nullable
+        private final MetricsSink mSink;
+        // copy on write, types are only added
+        @NonNull
+        private volatile SparseArray<EventMetrics.Builder> mTypes = new SparseArray<>();
+
+        public BusMetrics() {
+            this(null);
+        }
+
+        public BusMetrics(@Nullable final MetricsSink sink) {
+            mSink = sink;
+        }
+
+        @NonNull
+        public SparseArray<EventMetrics> snapshot() {
+            SparseArray<EventMetrics.Builder> types = mTypes;
+            SparseArray<EventMetrics> snapshot = new SparseArray<>(types.size());
+            for (int i = 0; i < types.size(); i++) {
+                snapshot.append(types.keyAt(i), types.valueAt(i).build());
+            }
+            return snapshot;
+        }
+
+        public synchronized void reset() {
+            mTypes = new SparseArray<>();
+        }
+
+        private void onRequest(final int eventType) {
+            EventMetrics.Builder builder = get(eventType);
+            synchronized (builder) {
+                builder.requests++;
+            }
+        }
+
+        private void onRequestDropped(final int eventType) {
+            EventMetrics.Builder builder = get(eventType);
+            synchronized (builder) {
+                builder.dropped++;
+            }
+        }
+
+        private void onRequestExecuted(final int eventType, final long queueWaitNanos, final long handlerNanos) {
+            EventMetrics.Builder builder = get(eventType);
+            synchronized (builder) {
+                builder.executed++;
+                builder.queueWaitNanos += queueWaitNanos;
+                builder.maxQueueWaitNanos = Math.max(builder.maxQueueWaitNanos, queueWaitNanos);
+                builder.handlerNanos += handlerNanos;
+                builder.maxHandlerNanos = Math.max(builder.maxHandlerNanos, handlerNanos);
+                long ms = handlerNanos / 1000000L;
+                builder.handlerHistogram[ms == 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(ms), HISTOGRAM_BOUNDS_MS.length)]++;
+            }
+            if (mSink != null) {
+                mSink.onRequestExecuted(eventType, queueWaitNanos, handlerNanos);
+            }
+        }
+
+        private void onResultDelivered(final int eventType, @NonNull final BusResultReceiver receiver, final long deliveryNanos) {
+            EventMetrics.Builder builder = get(eventType);
+            synchronized (builder) {
+                builder.delivered++;
+                builder.deliveryNanos += deliveryNanos;
+                builder.maxDeliveryNanos = Math.max(builder.maxDeliveryNanos, deliveryNanos);
+                long[] count = builder.receivers.get(receiver.getClass());
+                if (count == null) {
+                    builder.receivers.put(receiver.getClass(), count = new long[1]);
+                }
+                count[0]++;
+            }
+            if (mSink != null) {
+                mSink.onResultDelivered(eventType, receiver, deliveryNanos);
+            }
+        }
+
+        @NonNull
+        private EventMetrics.Builder get(final int eventType) {
+            EventMetrics.Builder builder = mTypes.get(eventType);
+            if (builder != null) {
+                return builder;
+            }
+            synchronized (this) {
+                SparseArray<EventMetrics.Builder> types = mTypes;
+                builder = types.get(eventType);
+                if (builder == null) {
+                    builder = new EventMetrics.Builder(eventType);
+                    SparseArray<EventMetrics.Builder> newTypes = new SparseArray<>(types.size() + 1);
+                    for (int i = 0; i < types.size(); i++) {
+                        newTypes.append(types.keyAt(i), types.valueAt(i));
+                    }
+                    newTypes.put(eventType, builder);
+                    mTypes = newTypes;
+                }
+                return builder;
+            }
+        }
+    }
+
+    public final static class EventMetrics {
+
+        public final int type;
+        public final long requests;
+        public final long executed;
+        // requests a result service had no room for
+        public final long dropped;
+        public final long queueWaitNanos;
+        public final long maxQueueWaitNanos;
+        public final long handlerNanos;
+        public final long maxHandlerNanos;
+        @NonNull
+        public final long[] handlerHistogram;
+        public final long delivered;
+        public final long deliveryNanos;
+        public final long maxDeliveryNanos;
+        @NonNull
+        public final HashMap<String, Long> deliveredByReceiver;
+
+        private EventMetrics(@NonNull final Builder builder) {
+            type = builder.type;
+            requests = builder.requests;
+            executed = builder.executed;
+            dropped = builder.dropped;
+            queueWaitNanos = builder.queueWaitNanos;
+            maxQueueWaitNanos = builder.maxQueueWaitNanos;
+            handlerNanos = builder.handlerNanos;
+            maxHandlerNanos = builder.maxHandlerNanos;
+            handlerHistogram = builder.handlerHistogram.clone();
+            delivered = builder.delivered;
+            deliveryNanos = builder.deliveryNanos;
+            maxDeliveryNanos = builder.maxDeliveryNanos;
+            deliveredByReceiver = new HashMap<>();
+            for (Map.Entry<Class, long[]> entry : builder.receivers.entrySet()) {
+                deliveredByReceiver.put(entry.getKey().getName(), entry.getValue()[0]);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "{type=" + type + " requests=" + requests + " executed=" + executed + " dropped=" + dropped
+                    + " queueWaitMs=" + queueWaitNanos / 1000000L + " handlerMs=" + handlerNanos / 1000000L
+                    + " histogram=" + Arrays.toString(handlerHistogram) + " delivered=" + delivered
+                    + " deliveryMs=" + deliveryNanos / 1000000L + " receivers=" + deliveredByReceiver + "}";
+        }
+
+        private final static class Builder {
+
+            private final int type;
+            private long requests;
+            private long executed;
+            private long dropped;
+            private long queueWaitNanos;
+            private long maxQueueWaitNanos;
+            private long handlerNanos;
+            private long maxHandlerNanos;
+            @NonNull
+            private final long[] handlerHistogram = new long[BusMetrics.HISTOGRAM_BOUNDS_MS.length + 1];
+            private long delivered;
+            private long deliveryNanos;
+            private long maxDeliveryNanos;
+            @NonNull
+            private final HashMap<Class, long[]> receivers = new HashMap<>();
+
+            private Builder(final int type) {
+                this.type = type;
+            }
+
+            @NonNull
+            private synchronized EventMetrics build() {
+                return new EventMetrics(this);
+            }
+        }
+    }
+
+    // ---------- --------------- ----------
+    // ---------- FLIGHT RECORDER ----------
+    // ---------- --------------- ----------
+
+    /**
+     * Ring buffer of the latest bus activity: requests enqueued, started and finished, results posted and delivered,
+     * each with its event type, thread and {@link System#nanoTime()}. Recording takes a few array writes and
+     * allocates nothing, so it can stay on in release builds. Dump it with {@link #writeChromeTrace} (for
+     * chrome://tracing) or {@link #writeBinary}, on demand or from the {@link StallListener} of the watchdog.
+     * Records written while dumping can come out mixed.
+     */
+    public final static class FlightRecorder {
+
+        public static final int DEFAULT_CAPACITY = 4096;
+
+        // record kinds
+        public static final byte REQUEST_ENQUEUED = 0;
+        public static final byte REQUEST_STARTED = 1;
+        public static final byte REQUEST_FINISHED = 2;
+        public static final byte RESULT_POSTED = 3;
+        public static final byte DELIVERY_STARTED = 4;
+        public static final byte DELIVERY_FINISHED = 5;
+
+        // writeBinary header, followed by the record count and the records: time, thread id, type and kind
+        public static final int BINARY_MAGIC = 0x42555346;
+        public static final int BINARY_VERSION = 1;
+
+        @NonNull
+        private static final String[] KIND_NAMES = {"enqueue", "request", "request", "post", "deliver", "deliver"};
+        @NonNull
+        private static final char[] KIND_PHASES = {'i', 'B', 'E', 'i', 'B', 'E'};
+
+        private final int mMask;
+        @NonNull
+        private final long[] mTimes;
+        @NonNull
+        private final long[] mThreads;
+        // taken when recording, the threads may be gone when dumping
+        @NonNull
+        private final String[] mThreadNames;
+        @NonNull
+        private final int[] mTypes;
+        @NonNull
+        private final byte[] mKinds;
+        @NonNull
+        private final AtomicLong mNext = new AtomicLong();
+        // guarded by this
+        @Nullable
+        private Watchdog mWatchdog;
+
+        public FlightRecorder() {
+            this(DEFAULT_CAPACITY);
+        }
+
+        /**
+         * @param capacity records kept, rounded up to a power of two
+         */
+        public FlightRecorder(final int capacity) {
+            if (capacity <= 0 || capacity > 1 << 30) {
+                throw new IllegalArgumentException("capacity=" + capacity);
+            }
+            int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+            mMask = size - 1;
+            mTimes = new long[size];
+            mThreads = new long[size];
+            mThreadNames = new String[size];
+            mTypes = new int[size];
+            mKinds = new byte[size];
+        }
+
+        private void record(final byte kind, final int eventType) {
+            int slot = (int) mNext.getAndIncrement() & mMask;
+            Thread thread = Thread.currentThread();
+            mTimes[slot] = System.nanoTime();
+            mThreads[slot] = thread.getId();
+            mThreadNames[slot] = thread.getName();
+            mTypes[slot] = eventType;
+            mKinds[slot] = kind;
+        }
+
+        public void clear() {
+            mNext.set(0);
+        }
+
+        public void writeBinary(@NonNull final OutputStream out) throws IOException {
+            Records records = copy();
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(BINARY_MAGIC);
+            data.writeInt(BINARY_VERSION);
+            data.writeInt(records.count);
+            for (int i = 0; i < records.count; i++) {
+                data.writeLong(records.times[i]);
+                data.writeLong(records.threads[i]);
+                data.writeInt(records.types[i]);
+                data.writeByte(records.kinds[i]);
+            }
+            data.flush();
+        }
+
+        /**
+         * Writes the records in the Trace Event Format: handlers and deliveries as slices of their thread, enqueued
+         * requests and posted results as instant events. Handlers still running are left open.
+         */
+        public void writeChromeTrace(@NonNull final Writer writer) throws IOException {
+            Records records = copy();
+            // the latest name of every thread
+            HashMap<Long, String> names = new HashMap<>();
+            for (int i = 0; i < records.count; i++) {
+                if (records.threadNames[i] != null) {
+                    names.put(records.threads[i], records.threadNames[i]);
+                }
+            }
+            // open slices per thread, the start of the oldest ones may have been overwritten
+            HashMap<Long, int[]> depths = new HashMap<>();
+            long origin = records.count > 0 ? records.times[0] : 0;
+            StringBuilder builder = new StringBuilder("{\"traceEvents\":[");
+            boolean first = true;
+            for (int i = 0; i < records.count; i++) {
+                byte kind = records.kinds[i];
+                if (kind < 0 || kind >= KIND_PHASES.length) {
+                    continue;
+                }
+                char phase = KIND_PHASES[kind];
+                int[] depth = depths.get(records.threads[i]);
+                if (depth == null) {
+                    depths.put(records.threads[i], depth = new int[1]);
+                }
+                if (phase == 'B') {
+                    depth[0]++;
+                } else if (phase == 'E' && depth[0]-- == 0) {
+                    depth[0] = 0;
+                    continue;
+                }
+                builder.append(first ? "" : ",").append("\n{\"name\":\"").append(KIND_NAMES[kind]).append(' ')
+                        .append(records.types[i]).append("\",\"cat\":\"bus\",\"ph\":\"").append(phase)
+                        .append("\",\"ts\":").append((records.times[i] - origin) / 1000.0)
+                        .append(",\"pid\":0,\"tid\":").append(records.threads[i])
+                        .append(phase == 'i' ? ",\"s\":\"t\"" : "")
+                        .append(",\"args\":{\"type\":").append(records.types[i]).append("}}");
+                first = false;
+            }
+            for (Long thread : depths.keySet()) {
+                String name = names.get(thread);
+                builder.append(first ? "" : ",").append("\n{\"name\":\"thread_name\",\"ph\":\"M\",\"pid\":0,\"tid\":")
+                        .append(thread).append(",\"args\":{\"name\":\"")
+                        .append(name == null ? "thread-" + thread : name.replace("\\", "\\\\").replace("\"", "\\\""))
+                        .append("\"}}");
+                first = false;
+            }
+            writer.write(builder.append("\n]}\n").toString());
+            writer.flush();
+        }
+
+        /**
+         * Starts a thread that checks every {@code stallMillis} that the main looper still handles messages, and
+         * calls {@code listener} once for every stall of at least that long. Replaces the running watchdog.
+         */
+        public synchronized void startWatchdog(final long stallMillis, @NonNull final StallListener listener) {
+            if (stallMillis <= 0) {
+                throw new IllegalArgumentException("stallMillis=" + stallMillis);
+            }
+            stopWatchdog();
+            mWatchdog = new Watchdog(this, stallMillis, listener);
+            mWatchdog.start();
+        }
+
+        public synchronized void stopWatchdog() {
+            if (mWatchdog != null) {
+                mWatchdog.interrupt();
+                mWatchdog = null;
+            }
+        }
+
+        // oldest first
+        @NonNull
+        private Records copy() {
+            long end = mNext.get();
+            Records records = new Records((int) Math.min(end, mTimes.length));
+            for (int i = 0; i < records.count; i++) {
+                int slot = (int) (end - records.count + i) & mMask;
+                records.times[i] = mTimes[slot];
+                records.threads[i] = mThreads[slot];
+                records.threadNames[i] = mThreadNames[slot];
+                records.types[i] = mTypes[slot];
+                records.kinds[i] = mKinds[slot];
+            }
+            return records;
+        }
+
+        public interface StallListener {
+            /**
+             * Called on the watchdog thread while the main looper is still stalled, e.g. to dump the recorder.
+             */
+            void onStall(@NonNull final FlightRecorder recorder, final long stalledMillis);
+        }
+
+        private final static class Records {
+
+            private final int count;
+            @NonNull
+            private final long[] times;
+            @NonNull
+            private final long[] threads;
+            @NonNull
+            private final String[] threadNames;
+            @NonNull
+            private final int[] types;
+            @NonNull
+            private final byte[] kinds;
+
+            private Records(final int count) {
+                this.count = count;
+                this.times = new long[count];
+                this.threads = new long[count];
+                this.threadNames = new String[count];
+                this.types = new int[count];
+                this.kinds = new byte[count];
+            }
+        }
+
+        private final static class Watchdog extends Thread {
+
+            private static final String THREAD_NAME = "bus-watchdog";
+
+            @NonNull
+            private final FlightRecorder recorder;
+            private final long stallMillis;
+            @NonNull
+            private final StallListener listener;
+            @NonNull
+            private final Handler handler = new Handler(Looper.getMainLooper());
+            @NonNull
+            private final Runnable tick = new Runnable() {
+                @Override
+                public void run() {
+                    answered = true;
+                }
+            };
+            private volatile boolean answered = true;
+
+            private Watchdog(@NonNull final FlightRecorder recorder, final long stallMillis,
+                             @NonNull final StallListener listener) {
+                super(THREAD_NAME);
+                this.recorder = recorder;
+                this.stallMillis = stallMillis;
+                this.listener = listener;
+                setDaemon(true);
+            }
+
+            @Override
+            public void run() {
+                long postedAt = 0;
+                boolean reported = false;
+                try {
+                    while (!isInterrupted()) {
+                        if (answered) {
+                            // a new tick only once the main looper got to the last one
+                            answered = false;
+                            reported = false;
+                            postedAt = SystemClock.uptimeMillis();
+                            handler.post(tick);
+                        }
+                        Thread.sleep(stallMillis);
+                        if (!answered && !reported) {
+                            reported = true;
+                            listener.onStall(recorder, SystemClock.uptimeMillis() - postedAt);
+                        }
+                    }
+                } catch (InterruptedException ignored) {
+                    // stopped
+                } finally {
+                    handler.removeCallbacks(tick);
+                }
+            }
+        }
+    }
+
+    // ---------- ---------------------- ----------
+    // ---------- EVENTS FINDER LISTENER ----------
+    // ---------- ---------------------- ----------
+
+    public interface EventsFinderListener {
+        public void notifyHas(final boolean b);
+    }
+
+    // ---------- ------------- ----------
+    // ---------- EVENTS FINDER ----------
+    // ---------- ------------- ----------
+
+    public final static class EventsFinder {
+        final int type;
+        @NonNull
+        final EventsFinderListener listener;
+
+        public EventsFinder(final int type, @NonNull final EventsFinderListener listener) {
+            this.type = type;
+            this.listener = listener;
+        }
+
+        @Override
+        public String toString() {
+            return "{" + type + "}";
+        }
+    }
+
+    // ---------- CURRENT PROCESSES TABLE ----------
+
+    /**
+     * Number of tracked ({@code canFind}) requests of one type that are queued or running. Finders are only
+     * notified when the count moves between zero and non zero, under this type's own lock. Once it has neither it is
+     * retired and taken out of the table, a retired type can't be acquired or get finders again.
+     */
+    private final static class InFlightType {
+
+        private static final int RETIRED = -1;
+
+        final int type;
+        @NonNull
+        private final AtomicInteger count = new AtomicInteger();
+        // guarded by this
+        @NonNull
+        private EventsFinder[] finders = new EventsFinder[0];
+        private boolean notifiedHas = false;
+
+        private InFlightType(final int type) {
+            this.type = type;
+        }
+
+        /**
+         * @return false if the type was retired
+         */
+        private boolean acquire(final int n) {
+            int current;
+            do {
+                current = count.get();
+                if (current == RETIRED) {
+                    return false;
+                }
+            } while (!count.compareAndSet(current, current + n));
+            if (current == 0) {
+                refresh();
+            }
+            if (DEBUG) {
+                Log.e(TAG, TAG + " add event " + type + " count=" + count.get());
+            }
+            return true;
+        }
+
+        /**
+         * @return true if the type was retired
+         */
+        private boolean release(final int n) {
+            boolean idle = n > 0 && count.addAndGet(-n) == 0;
+            if (idle) {
+                refresh();
+            }
+            if (DEBUG) {
+                Log.e(TAG, TAG + " remove event " + type + " count=" + count.get());
+            }
+            return idle && retire();
+        }
+
+        private synchronized boolean retire() {
+            return finders.length == 0 && count.compareAndSet(0, RETIRED);
+        }
+
+        private synchronized void refresh() {
+            boolean has = count.get() > 0;
+            if (has == notifiedHas) {
+                return;
+            }
+            notifiedHas = has;
+            for (EventsFinder finder : finders) {
+                finder.listener.notifyHas(has);
+            }
+        }
+
+        /**
+         * @return false if the type was retired
+         */
+        private synchronized boolean addFinder(@NonNull final EventsFinder eventsFinder) {
+            if (count.get() == RETIRED) {
+                return false;
+            }
+            refresh();
+            EventsFinder[] newFinders = new EventsFinder[finders.length + 1];
+            System.arraycopy(finders, 0, newFinders, 0, finders.length);
+            newFinders[finders.length] = eventsFinder;
+            finders = newFinders;
+            eventsFinder.listener.notifyHas(notifiedHas);
+            return true;
+        }
+
+        /**
+         * @return true if the type was retired
+         */
+        private synchronized boolean removeFinder(@NonNull final EventsFinder eventsFinder) {
+            for (int i = 0; i < finders.length; i++) {
+                if (finders[i] == eventsFinder) {
+                    EventsFinder[] newFinders = new EventsFinder[finders.length - 1];
+                    System.arraycopy(finders, 0, newFinders, 0, i);
+                    System.arraycopy(finders, i + 1, newFinders, i, finders.length - i - 1);
+                    finders = newFinders;
+                    return retire();
+                }
+            }
+            return false;
+        }
+
+        @Override
+        public synchronized String toString() {
+            return type + ":" + Arrays.toString(finders);
+        }
+    }
+
+    @NonNull
+    private InFlightType getInFlightType(final int type) {
+        InFlightType inFlightType = mInFlightTypes.get(type);
+        if (inFlightType != null && inFlightType.count.get() != InFlightType.RETIRED) {
+            return inFlightType;
+        }
+        synchronized (this) {
+            SparseArray<InFlightType> types = mInFlightTypes;
+            inFlightType = types.get(type);
+            // a retired type may still be in the table until removeInFlightType gets to it
+            if (inFlightType == null || inFlightType.count.get() == InFlightType.RETIRED) {
+                inFlightType = new InFlightType(type);
+                SparseArray<InFlightType> newTypes = new SparseArray<>(types.size() + 1);
+                for (int i = 0; i < types.size(); i++) {
+                    newTypes.append(types.keyAt(i), types.valueAt(i));
+                }
+                newTypes.put(type, inFlightType);
+                mInFlightTypes = newTypes;
+            }
+            return inFlightType;
+        }
+    }
+
+    @NonNull
+    private InFlightType acquireInFlight(final int type) {
+        while (true) {
+            InFlightType inFlightType = getInFlightType(type);
+            if (inFlightType.acquire(1)) {
+                return inFlightType;
+            }
+        }
+    }
+
+    private void releaseInFlight(@NonNull final InFlightType inFlightType, final int n) {
+        if (inFlightType.release(n)) {
+            removeInFlightType(inFlightType);
+        }
+    }
+
+    private void removeInFlightType(@NonNull final InFlightType inFlightType) {
+        synchronized (this) {
+            SparseArray<InFlightType> types = mInFlightTypes;
+            if (types.get(inFlightType.type) != inFlightType) {
+                return;
+            }
+            SparseArray<InFlightType> newTypes = new SparseArray<>(types.size());
+            for (int i = 0; i < types.size(); i++) {
+                if (types.valueAt(i) != inFlightType) {
+                    newTypes.append(types.keyAt(i), types.valueAt(i));
+                }
+            }
+            mInFlightTypes = newTypes;
+        }
+    }
+
+    // ---------- CURRENT PROCESSES TABLE END ----------
+
+    private static void initInstance(@NonNull final Context context,
+                                     @NonNull final List<BusRequestReceiver> listInbox,
+                                     @Nullable final BusIndex index,
+                                     @NonNull final BusScheduler scheduler,
+                                     @NonNull final StickyCache stickyCache,
+                                     @NonNull final ResultCache resultCache,
+                                     @Nullable final RequestJournal journal,
+                                     final boolean lazy) {
+        BusAnnotationProcessor.index = index;
+        sInstance = new Bus(context, listInbox, index, scheduler, stickyCache, resultCache, journal);
+        // after sInstance is set, the init thread and the journal replay use it
+        sInstance.start(lazy);
+    }
+
+    private Bus(@NonNull final Context context,
+                @NonNull final List<BusRequestReceiver> listInbox,
+                @Nullable final BusIndex index,
+                @NonNull final BusScheduler scheduler,
+                @NonNull final StickyCache stickyCache,
+                @NonNull final ResultCache resultCache,
+                @Nullable final RequestJournal journal) {
+        mContext = context;
+        mScheduler = scheduler;
+        mStickyCache = stickyCache;
+        mResultCache = resultCache;
+        mJournal = journal;
+        mPendingInbox = listInbox;
+        mPendingIndex = index;
+    }
+
+    private void start(final boolean lazy) {
+        if (!lazy) {
+            ensureIndexed();
+            return;
+        }
+        new Thread(INIT_THREAD_NAME) {
+            @Override
+            public void run() {
+                Process.setThreadPriority(Process.THREAD_PRIORITY_BACKGROUND);
+                mInitTid = Process.myTid();
+                try {
+                    ensureIndexed();
+                } finally {
+                    mInitTid = 0;
+                }
+            }
+        }.start();
+    }
+
+    private void ensureIndexed() {
+        if (mIndexed) {
+            return;
+        }
+        boolean built = false;
+        int initTid = mInitTid;
+        if (initTid != 0 && initTid != Process.myTid()) {
+            // the init thread runs in the background, lend it the priority of the caller waiting for it
+            int priority = Process.getThreadPriority(Process.myTid());
+            try {
+                if (priority < Process.getThreadPriority(initTid)) {
+                    Process.setThreadPriority(initTid, priority);
+                }
+            } catch (IllegalArgumentException | SecurityException e) {
+                // done and gone meanwhile
+            }
+        }
+        synchronized (mIndexLock) {
+            if (!mIndexed) {
+                buildIndex();
+                mPendingInbox = null;
+                mPendingIndex = null;
+                mIndexed = true;
+                built = true;
+            }
+        }
+        if (built && mJournal != null) {
+            // replays on its own thread, the handlers are indexed now
+            mJournal.start(this);
+        }
+    }
+
+    // guarded by mIndexLock
+    private void buildIndex() {
+        Class<? extends BusResultService>[] services = mPendingIndex != null
+                ? mPendingIndex.services() : BusApplication.scanServices(mContext);
+        SparseArray<ArrayList<RequestTarget>> requestTargets = new SparseArray<>();
+        for (BusRequestReceiver receiver : mPendingInbox) {
+            BusAnnotationProcessor.HandlerTable table = BusAnnotationProcessor.processCacheRequest(receiver);
+            for (int i = 0; i < table.requests.size(); i++) {
+                int type = table.requests.keyAt(i);
+                ArrayList<RequestTarget> targets = requestTargets.get(type);
+                if (targets == null) {
+                    targets = new ArrayList<>();
+                    requestTargets.put(type, targets);
+                }
+                Long cacheTtl = table.requestCacheTtls.get(type);
+                targets.add(new RequestTarget(receiver, table.requests.valueAt(i),
+                        table.requestPriorities.get(type, PRIORITY_NORMAL), table.requestCollapsed.get(type),
+                        table.requestCacheResults.get(type, NO_CACHE), cacheTtl == null ? 0 : cacheTtl));
+            }
+        }
+        for (int i = 0; i < requestTargets.size(); i++) {
+            ArrayList<RequestTarget> targets = requestTargets.valueAt(i);
+            mRequestIndex.put(requestTargets.keyAt(i), targets.toArray(new RequestTarget[targets.size()]));
+        }
+        for (Class<? extends BusResultService> clazz : services) {
+            SparseArray<BusAnnotationProcessor.Invoker> requests = BusAnnotationProcessor.processCacheRequestClass(clazz).requests;
+            for (int i = 0; i < requests.size(); i++) {
+                ArrayList<Class<? extends BusResultService>> classes = mServiceIndex.get(requests.keyAt(i));
+                if (classes == null) {
+                    classes = new ArrayList<>();
+                    mServiceIndex.put(requests.keyAt(i), classes);
+                }
+                classes.add(clazz);
+            }
+        }
+        mServiceQueue = mServiceIndex.size() > 0 ? new ServiceQueue(mContext) : null;
+    }
+
+    // ---------- SUBSCRIBERS INDEX ----------
+
+    private void indexHandler(@NonNull final ResultHandler handler, final boolean add) {
+        BusAnnotationProcessor.HandlerTable table = handler.table;
+        if (table.resultAll != null) {
+            // one message per result is enough, the handler invokes the typed method as well
+            mResultAllHandlers = add ? addHandler(mResultAllHandlers, handler) : removeHandler(mResultAllHandlers, handler);
+            return;
+        }
+        if (!table.patterns.isEmpty()) {
+            mPatternHandlers = add ? addHandler(mPatternHandlers, handler) : removeHandler(mPatternHandlers, handler);
+        }
+        for (int i = 0; i < table.results.size(); i++) {
+            ResultSlot slot = slotFor(table.results.keyAt(i));
+            slot.handlers = add ? addHandler(slot.handlers, handler) : removeHandler(slot.handlers, handler);
+        }
+    }
+
+    // guarded by mResultIndex
+    @NonNull
+    private ResultSlot slotFor(final int type) {
+        ResultSlot slot = mResultIndex.get(type);
+        if (slot == null) {
+            slot = new ResultSlot();
+            mResultIndex.put(type, slot);
+            mResultSlots = mResultIndex.clone();
+        }
+        return slot;
+    }
+
+    @NonNull
+    private static ResultHandler[] matchPatterns(@NonNull final ResultHandler[] patternHandlers, final int type) {
+        ResultHandler[] handlers = NO_HANDLERS;
+        for (ResultHandler handler : patternHandlers) {
+            // receivers of the exact type get their pattern methods invoked in the same delivery
+            if (handler.table.results.get(type) == null && handler.table.matchesPattern(type)) {
+                handlers = addHandler(handlers, handler);
+            }
+        }
+        return handlers;
+    }
+
+    @NonNull
+    private static ResultHandler[] addHandler(@Nullable final ResultHandler[] handlers, @NonNull final ResultHandler handler) {
+        int length = handlers == null ? 0 : handlers.length;
+        ResultHandler[] result = new ResultHandler[length + 1];
+        if (handlers != null) {
+            System.arraycopy(handlers, 0, result, 0, length);
+        }
+        result[length] = handler;
+        return result;
+    }
+
+    @Nullable
+    private static ResultHandler[] removeHandler(@Nullable final ResultHandler[] handlers, @NonNull final ResultHandler handler) {
+        if (handlers == null) {
+            return null;
+        }
+        for (int i = 0; i < handlers.length; i++) {
+            if (handlers[i] != handler) {
+                continue;
+            }
+            if (handlers.length == 1) {
+                return null;
+            }
+            ResultHandler[] result = new ResultHandler[handlers.length - 1];
+            System.arraycopy(handlers, 0, result, 0, i);
+            System.arraycopy(handlers, i + 1, result, i, handlers.length - i - 1);
+            return result;
+        }
+        return handlers;
+    }
+
+    // guarded by mResultIndex
+    @NonNull
+    private DeliveryQueue getDeliveryQueue(@NonNull final Looper looper) {
+        DeliveryQueue queue = mDeliveryQueues.get(looper);
+        if (queue == null) {
+            queue = new DeliveryQueue(looper);
+            mDeliveryQueues.put(looper, queue);
+        }
+        return queue;
+    }
+
+    private void removeDeadHandler(@NonNull final ResultHandler handler) {
+        synchronized (mResultIndex) {
+            if (handler.active) {
+                handler.active = false;
+                indexHandler(handler, false);
+                if (DEBUG) {
+                    Log.e(TAG, TAG + " removed collected receiver");
+                }
+            }
+        }
+    }
+
+    // ---------- SUBSCRIBERS INDEX END ----------
+
+    // ----- PUBLIC METHODS START -----
+
+    public static void addFinder(@NonNull final EventsFinder eventsFinder) {
+        addFinder(sInstance, eventsFinder);
+    }
+
+    private static void addFinder(@NonNull final Bus bus, @NonNull final EventsFinder eventsFinder) {
+        InFlightType inFlightType;
+        do {
+            inFlightType = bus.getInFlightType(eventsFinder.type);
+        } while (!inFlightType.addFinder(eventsFinder));
+        if (DEBUG) {
+            Log.e(TAG, TAG + " add finder " + eventsFinder.type + " finders=" + inFlightType);
+        }
+    }
+
+    public static void removeFinder(@NonNull final EventsFinder eventsFinder) {
+        removeFinder(sInstance, eventsFinder);
+    }
+
+    private static void removeFinder(@NonNull final Bus bus, @NonNull final EventsFinder eventsFinder) {
+        InFlightType inFlightType = bus.mInFlightTypes.get(eventsFinder.type);
+        if (inFlightType == null) {
+            return;
+        }
+        if (inFlightType.removeFinder(eventsFinder)) {
+            bus.removeInFlightType(inFlightType);
+        }
+        if (DEBUG) {
+            Log.e(TAG, TAG + " remove finder " + eventsFinder.type + " finders=" + inFlightType);
+        }
+    }
+
+    @NonNull
+    public static Context getContext() {
+        return sInstance.mContext;
+    }
+
+    public static void subscribe(@NonNull final BusResultReceiver receiver) {
+        subscribe(sInstance, receiver, Subscription.STRONG, null);
+    }
+
+    /**
+     * Holds the receiver weakly: once it is garbage collected it gets no more results and its subscription is
+     * dropped the next time a result reaches it.
+     */
+    public static void subscribeWeak(@NonNull final BusResultReceiver receiver) {
+        subscribe(sInstance, receiver, Subscription.WEAK, null);
+    }
+
+    /**
+     * Unsubscribes the receiver when {@code owner} is destroyed. Before API 14 the subscription is weak instead.
+     */
+    public static void subscribe(@NonNull final BusResultReceiver receiver, @NonNull final Activity owner) {
+        subscribe(sInstance, receiver, owner);
+    }
+
+    private static void subscribe(@NonNull final Bus bus, @NonNull final BusResultReceiver receiver,
+                                  @NonNull final Activity owner) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.ICE_CREAM_SANDWICH) {
+            subscribe(bus, receiver, Subscription.SCOPED, owner);
+        } else {
+            subscribe(bus, receiver, Subscription.WEAK, null);
+        }
+    }
+
+    private static void subscribe(@NonNull final Bus bus, @NonNull final BusResultReceiver receiver, final int mode,
+                                  @Nullable final Activity owner) {
+        BusAnnotationProcessor.HandlerTable table = BusAnnotationProcessor.processCacheResult(receiver);
+        ResultHandler handler;
+        ArrayList<BusEvent> posting;
+        synchronized (bus.mResultIndex) {
+            if (bus.mClosed) {
+                throw new IllegalStateException("bus scope is closed");
+            }
+            if (bus.mHandlerMap.containsKey(receiver)) {
+                return;
+            }
+            DeliveryQueue queue = null;
+            if (table.usesThread(THREAD_SUBSCRIBER)) {
+                Looper looper = Looper.myLooper();
+                if (looper == null) {
+                    throw new RuntimeException("Can't subscribe inside thread that has not called Looper.prepare()");
+                }
+                queue = bus.getDeliveryQueue(looper);
+            }
+            DeliveryQueue mainQueue = table.usesThread(THREAD_MAIN) ? bus.getDeliveryQueue(Looper.getMainLooper()) : null;
+            DeliveryQueue backgroundQueue = null;
+            if (table.usesThread(THREAD_BACKGROUND)) {
+                if (bus.mBackgroundThread == null) {
+                    bus.mBackgroundThread = new HandlerThread(BACKGROUND_THREAD_NAME, Process.THREAD_PRIORITY_BACKGROUND);
+                    bus.mBackgroundThread.start();
+                }
+                backgroundQueue = bus.getDeliveryQueue(bus.mBackgroundThread.getLooper());
+            }
+            handler = new ResultHandler(bus, receiver, mode, owner, table, queue, mainQueue, backgroundQueue);
+            bus.mHandlerMap.put(receiver, handler);
+            bus.indexHandler(handler, true);
+            if (owner != null) {
+                if (bus.mScopes == null) {
+                    bus.mScopes = new ScopeCallbacks(bus);
+                    ((Application) bus.mContext.getApplicationContext()).registerActivityLifecycleCallbacks(bus.mScopes);
+                }
+                bus.mScopes.add(owner, receiver);
+            }
+            posting = bus.mStickyCache.replay(handler);
+        }
+        if (posting != null) {
+            for (BusEvent event : posting) {
+                handler.deliverNow(event);
+            }
+        }
+    }
+
+    public static void unSubscribe(@NonNull final BusResultReceiver receiver) {
+        unSubscribe(sInstance, receiver);
+    }
+
+    private static void unSubscribe(@NonNull final Bus bus, @NonNull final BusResultReceiver receiver) {
+        synchronized (bus.mResultIndex) {
+            ResultHandler resultHandler = bus.mHandlerMap.remove(receiver);
+            if (resultHandler != null) {
+                resultHandler.active = false;
+                bus.indexHandler(resultHandler, false);
+                if (resultHandler.owner != null && bus.mScopes != null) {
+                    bus.mScopes.remove(resultHandler.owner, receiver);
+                }
+            }
+        }
+    }
+
+    private static void close(@NonNull final Bus bus) {
+        synchronized (bus.mResultIndex) {
+            if (bus.mClosed) {
+                return;
+            }
+            bus.mClosed = true;
+            for (ResultHandler handler : bus.mHandlerMap.values()) {
+                handler.active = false;
+                bus.indexHandler(handler, false);
+            }
+            bus.mHandlerMap.clear();
+            if (bus.mScopes != null) {
+                ((Application) bus.mContext.getApplicationContext()).unregisterActivityLifecycleCallbacks(bus.mScopes);
+                bus.mScopes = null;
+            }
+            if (bus.mBackgroundThread != null) {
+                bus.mBackgroundThread.quit();
+                bus.mBackgroundThread = null;
+            }
+            bus.mStickyCache.clear();
+        }
+        bus.mResultCache.clear();
+        // queued requests still run through it, their handlers are skipped
+        bus.mScheduler.shutdown();
+    }
+
+    /**
+     * Current subscriptions for diagnostics, e.g. logging the {@link Subscription#leaked} ones in debug builds.
+     */
+    @NonNull
+    public static List<Subscription> getSubscriptions() {
+        return getSubscriptions(sInstance);
+    }
+
+    @NonNull
+    private static List<Subscription> getSubscriptions(@NonNull final Bus bus) {
+        ArrayList<Subscription> subscriptions = new ArrayList<>();
+        synchronized (bus.mResultIndex) {
+            for (ResultHandler handler : bus.mHandlerMap.values()) {
+                BusResultReceiver receiver = handler.getReceiver();
+                if (receiver != null) {
+                    subscriptions.add(new Subscription(receiver, handler.mode, handler.subscribedAtMillis, handler.owner));
+                }
+            }
+        }
+        return subscriptions;
+    }
+
+    public static void setRecyclable(final int eventType, final boolean recyclable) {
+        setRecyclable(sInstance, eventType, recyclable);
+    }
+
+    private static void setRecyclable(@NonNull final Bus bus, final int eventType, final boolean recyclable) {
+        synchronized (bus.mResultIndex) {
+            bus.slotFor(eventType).recyclable = recyclable;
+        }
+    }
+
+    public static void setSticky(final int eventType, final boolean sticky) {
+        setSticky(sInstance, eventType, sticky);
+    }
+
+    private static void setSticky(@NonNull final Bus bus, final int eventType, final boolean sticky) {
+        synchronized (bus.mResultIndex) {
+            bus.mStickyCache.setSticky(eventType, sticky);
+            bus.slotFor(eventType).sticky = sticky;
+        }
+    }
+
+    public static void removeStickyResult(final int eventType) {
+        removeStickyResult(sInstance, eventType);
+    }
+
+    private static void removeStickyResult(@NonNull final Bus bus, final int eventType) {
+        synchronized (bus.mResultIndex) {
+            bus.mStickyCache.remove(eventType);
+        }
+    }
+
+    public static void clearStickyResults() {
+        clearStickyResults(sInstance);
+    }
+
+    private static void clearStickyResults(@NonNull final Bus bus) {
+        synchronized (bus.mResultIndex) {
+            bus.mStickyCache.clear();
+        }
+    }
+
+    public static void setMetrics(@Nullable final BusMetrics metrics) {
+        sInstance.mMetrics = metrics;
+    }
+
+    @Nullable
+    public static BusMetrics getMetrics() {
+        return sInstance.mMetrics;
+    }
+
+    /**
+     * Set by {@link BusApplication#createFlightRecorder()}, null turns recording off.
+     */
+    public static void setFlightRecorder(@Nullable final FlightRecorder recorder) {
+        sInstance.mRecorder = recorder;
+    }
+
+    @Nullable
+    public static FlightRecorder getFlightRecorder() {
+        return sInstance.mRecorder;
+    }
+
+    /**
+     * Hit and miss counts of the {@link EventTakerRequest#cacheResult()} handlers, and {@link ResultCache#clear()}.
+     */
+    @NonNull
+    public static ResultCache getResultCache() {
+        return sInstance.mResultCache;
+    }
+
+    public static void sendResult(final int eventType) {
+        sendResult(sInstance, eventType, null, null, null);
+    }
+
+    public static void sendResult(final int eventType,
+                                  @Nullable final Bundle bundleInput,
+                                  @Nullable final Bundle bundleOutput) {
+        sendResult(sInstance, eventType, bundleInput, bundleOutput, null);
+    }
+
+    /**
+     * Sends {@code payload} as is to the receivers, see {@link BusEvent#getPayload()}.
+     */
+    public static void sendResult(final int eventType, @Nullable final Object payload) {
+        sendResult(sInstance, eventType, null, null, payload);
+    }
+
+    private static void sendResult(@NonNull final Bus bus,
+                                   final int eventType,
+                                   @Nullable final Bundle bundleInput,
+                                   @Nullable final Bundle bundleOutput,
+                                   @Nullable final Object payload) {
+        sendResult(bus, eventType, bundleInput, bundleOutput, payload, null);
+    }
+
+    // chunks of a stream are never sticky nor recycled, they release the stream once every receiver handled them
+    private static void sendResult(@NonNull final Bus bus,
+                                   final int eventType,
+                                   @Nullable final Bundle bundleInput,
+                                   @Nullable final Bundle bundleOutput,
+                                   @Nullable final Object payload,
+                                   @Nullable final StreamState chunkOf) {
+        ResultHandler[] handlers;
+        ResultHandler[] allHandlers;
+        ResultHandler[] patternSet;
+        ResultHandler[] patternHandlers = null;
+        BusEvent event = null;
+        ResultSlot slot = bus.mResultSlots.get(eventType);
+        if (slot == null && bus.mPatternHandlers != null) {
+            // the first result of a type matched by patterns keeps the matches in a slot of its own
+            synchronized (bus.mResultIndex) {
+                slot = bus.slotFor(eventType);
+            }
+        }
+        if (slot != null && slot.sticky && chunkOf == null) {
+            synchronized (bus.mResultIndex) {
+                // stored under the index lock so a concurrent subscribe sees either the handler list or the event
+                if (bus.mStickyCache.isSticky(eventType)) {
+                    event = new BusEvent(eventType, bundleInput, bundleOutput);
+                    event.payload = payload;
+                    bus.mStickyCache.put(event);
+                }
+                handlers = slot.handlers;
+                allHandlers = bus.mResultAllHandlers;
+                patternSet = bus.mPatternHandlers;
+            }
+        } else {
+            handlers = slot == null ? null : slot.handlers;
+            allHandlers = bus.mResultAllHandlers;
+            patternSet = bus.mPatternHandlers;
+        }
+        boolean recyclable = slot != null && slot.recyclable;
+        if (patternSet != null && slot != null) {
+            PatternMatches matches = slot.patterns;
+            if (matches == null || matches.patternSet != patternSet) {
+                // matched again only after the pattern receivers changed; a stale write racing with another
+                // result is fixed by the next one
+                matches = new PatternMatches(patternSet, matchPatterns(patternSet, eventType));
+                slot.patterns = matches;
+            }
+            if (matches.handlers.length > 0) {
+                patternHandlers = matches.handlers;
+            }
+        }
+        FlightRecorder recorder = bus.mRecorder;
+        if (recorder != null) {
+            recorder.record(FlightRecorder.RESULT_POSTED, eventType);
+        }
+        if (handlers == null && allHandlers == null && patternHandlers == null) {
+            if (chunkOf != null) {
+                chunkOf.onChunkDelivered();
+            }
+            return;
+        }
+        int deliveries = count(handlers) + count(allHandlers) + count(patternHandlers);
+        if (event == null) {
+            event = recyclable && chunkOf == null
+                    ? BusEvent.obtain(eventType, bundleInput, bundleOutput, deliveries)
+                    : new BusEvent(eventType, bundleInput, bundleOutput);
+            event.payload = payload;
+            if (chunkOf != null) {
+                event.chunkOf = chunkOf;
+                event.pendingDeliveries = deliveries;
+            }
+        }
+        post(handlers, event);
+        post(allHandlers, event);
+        post(patternHandlers, event);
+    }
+
+    private static int count(@Nullable final ResultHandler[] handlers) {
+        return handlers == null ? 0 : handlers.length;
+    }
+
+    private static void post(@Nullable final ResultHandler[] handlers, @NonNull final BusEvent event) {
+        if (handlers == null) {
+            return;
+        }
+        for (ResultHandler handler : handlers) {
+            if (!handler.post(event)) {
+                handler.deliverNow(event);
+            }
+        }
+    }
+
+    public static void sendRequest(final int eventType) {
+        sendRequest(sInstance, new BusEvent(eventType, null, null), false);
+    }
+
+    public static void sendRequest(final int eventType,
+                                   @Nullable final Bundle bundleInput,
+                                   @Nullable final Bundle bundleOutput) {
+        sendRequest(sInstance, new BusEvent(eventType, bundleInput, bundleOutput), false);
+    }
+
+    public static void sendRequest(final int eventType,
+                                   @Nullable final Bundle bundleInput,
+                                   @Nullable final Bundle bundleOutput,
+                                   final boolean canFind) {
+        sendRequest(sInstance, new BusEvent(eventType, bundleInput, bundleOutput), canFind);
+    }
+
+    /**
+     * Sends {@code payload} as is to the handlers, see {@link BusEvent#getPayload()}.
+     */
+    public static void sendRequest(final int eventType, @Nullable final Object payload) {
+        sendRequest(sInstance, BusEvent.withPayload(eventType, payload), false);
+    }
+
+    @NonNull
+    public static RequestHandle sendCancellableRequest(final int eventType,
+                                                       @Nullable final Bundle bundleInput,
+                                                       @Nullable final Bundle bundleOutput,
+                                                       final long timeoutMillis) {
+        BusEvent event = new BusEvent(eventType, bundleInput, bundleOutput);
+        return sendCancellableRequest(sInstance, event, false, timeoutMillis);
+    }
+
+    /**
+     * Like {@link #sendRequest(int, Bundle, Bundle, boolean)}, but the returned handle can cancel and await the
+     * handlers. A positive {@code timeoutMillis} cancels the request when it elapses. These requests are never
+     * collapsed with others, so cancelling one can't affect another caller.
+     */
+    @NonNull
+    public static RequestHandle sendCancellableRequest(final int eventType,
+                                                       @Nullable final Bundle bundleInput,
+                                                       @Nullable final Bundle bundleOutput,
+                                                       final boolean canFind,
+                                                       final long timeoutMillis) {
+        BusEvent event = new BusEvent(eventType, bundleInput, bundleOutput);
+        return sendCancellableRequest(sInstance, event, canFind, timeoutMillis);
+    }
+
+    @NonNull
+    public static RequestHandle sendCancellableRequest(final int eventType,
+                                                       @Nullable final Object payload,
+                                                       final long timeoutMillis) {
+        return sendCancellableRequest(sInstance, BusEvent.withPayload(eventType, payload), false, timeoutMillis);
+    }
+
+    @NonNull
+    private static RequestHandle sendCancellableRequest(@NonNull final Bus bus, @NonNull final BusEvent event,
+                                                        final boolean canFind, final long timeoutMillis) {
+        bus.ensureIndexed();
+        RequestTarget[] targets = bus.mRequestIndex.get(event.getType());
+        event.handle = new RequestHandle(timeoutMillis, targets == null ? 0 : targets.length);
+        sendRequest(bus, event, canFind);
+        return event.handle;
+    }
+
+    /**
+     * Runs every request handler of {@code eventType} in parallel, each with its own output bundle, and sends the
+     * outputs merged by {@code gather} as one result with {@code bundleInput} as its input. Handlers dropped by
+     * cancelling or by the deadline add nothing. Services are not started for these requests.
+     */
+    @NonNull
+    public static RequestHandle sendGatherRequest(final int eventType,
+                                                  @Nullable final Bundle bundleInput,
+                                                  @NonNull final Gather gather,
+                                                  final long timeoutMillis) {
+        return sendGatherRequest(sInstance, eventType, bundleInput, gather, timeoutMillis);
+    }
+
+    @NonNull
+    private static RequestHandle sendGatherRequest(@NonNull final Bus bus, final int eventType,
+                                                  @Nullable final Bundle bundleInput,
+                                                  @NonNull final Gather gather,
+                                                  final long timeoutMillis) {
+        BusMetrics metrics = bus.mMetrics;
+        if (metrics != null) {
+            metrics.onRequest(eventType);
+        }
+        bus.ensureIndexed();
+        RequestTarget[] targets = bus.mRequestIndex.get(eventType);
+        int count = targets == null ? 0 : targets.length;
+        RequestHandle handle = new RequestHandle(timeoutMillis, count);
+        GatherState state = new GatherState(bus, gather, bundleInput, count);
+        if (count == 0) {
+            state.sendResult();
+            return handle;
+        }
+        for (RequestTarget target : targets) {
+            BusEvent event = new BusEvent(eventType, bundleInput, null);
+            event.handle = handle;
+            RequestTask task = new RequestTask(bus, event, target, null);
+            task.gather = state;
+            bus.schedule(task);
+        }
+        return handle;
+    }
+
+    /**
+     * Runs every request handler of {@code eventType} in parallel. They send their result in chunks with
+     * {@link BusEvent#emit(Bundle)}, which slows them down when the receivers fall behind, and the end result
+     * follows once all of them returned, see {@link Stream}. Services are not started for these requests.
+     */
+    @NonNull
+    public static RequestHandle sendStreamingRequest(final int eventType,
+                                                     @Nullable final Bundle bundleInput,
+                                                     @NonNull final Stream stream,
+                                                     final long timeoutMillis) {
+        return sendStreamingRequest(sInstance, eventType, bundleInput, stream, timeoutMillis);
+    }
+
+    @NonNull
+    private static RequestHandle sendStreamingRequest(@NonNull final Bus bus, final int eventType,
+                                                      @Nullable final Bundle bundleInput,
+                                                      @NonNull final Stream stream,
+                                                      final long timeoutMillis) {
+        BusMetrics metrics = bus.mMetrics;
+        if (metrics != null) {
+            metrics.onRequest(eventType);
+        }
+        bus.ensureIndexed();
+        RequestTarget[] targets = bus.mRequestIndex.get(eventType);
+        int count = targets == null ? 0 : targets.length;
+        RequestHandle handle = new RequestHandle(timeoutMillis, count);
+        StreamState state = new StreamState(bus, stream, bundleInput, handle, count);
+        handle.mStream = state;
+        if (count == 0) {
+            state.sendEnd();
+            return handle;
+        }
+        for (RequestTarget target : targets) {
+            BusEvent event = new BusEvent(eventType, bundleInput, null);
+            event.handle = handle;
+            event.stream = state;
+            RequestTask task = new RequestTask(bus, event, target, null);
+            bus.schedule(task);
+        }
+        return handle;
+    }
+
+    private static void sendRequest(@NonNull final Bus bus, @NonNull final BusEvent event, final boolean canFind) {
+        int eventType = event.getType();
+        BusMetrics metrics = bus.mMetrics;
+        if (metrics != null) {
+            metrics.onRequest(eventType);
+        }
+        bus.ensureIndexed();
+        RequestTarget[] targets = bus.mRequestIndex.get(eventType);
+        RequestJournal journal = bus.mJournal;
+        JournalEntry entry = null;
+        // replayed by the journal, which does not know whether the services handled it
+        boolean replayed = event.journalEntry != null;
+        if (journal != null && (replayed || journal.isDurable(eventType))) {
+            // released by every task and once below, so dropped requests are done too
+            entry = journal.track(event, targets == null ? 0 : targets.length, canFind);
+        }
+        if (targets != null) {
+            for (RequestTarget target : targets) {
+                if (target.cacheResult != NO_CACHE && event.handle == null && bus.sendCachedResult(event, target)) {
+                    if (entry != null) {
+                        journal.release(entry);
+                    }
+                    continue;
+                }
+                BusEvent handlerEvent = targets.length == 1 ? event : event.forHandler();
+                if (target.collapse && event.handle == null) {
+                    if (!bus.scheduleCollapsed(handlerEvent, target, canFind) && entry != null) {
+                        journal.release(entry);
+                    }
+                    continue;
+                }
+                InFlightType inFlight = canFind ? bus.acquireInFlight(eventType) : null;
+                RequestTask task = new RequestTask(bus, handlerEvent, target, inFlight);
+                bus.schedule(task);
+            }
+        }
+        if (entry != null) {
+            journal.release(entry);
+        }
+        ArrayList<Class<? extends BusResultService>> classes = replayed ? null : bus.mServiceIndex.get(eventType);
+        if (classes != null) {
+            event.tracked = canFind;
+            for (int i = 0; i < classes.size(); i++) {
+                if (canFind) {
+                    bus.acquireInFlight(eventType);
+                }
+                bus.mServiceQueue.post(classes.get(i), event);
+            }
+        }
+    }
+
+    // ---------- PUBLIC METHODS FINISH ----------
+
+    /**
+     * Called by result services for every request they handled or had to drop.
+     */
+    private static void onServiceRequestDone(final int eventType, final boolean tracked, final boolean dropped) {
+        Bus bus = sInstance;
+        if (bus == null) {
+            return;
+        }
+        if (dropped) {
+            BusMetrics metrics = bus.mMetrics;
+            if (metrics != null) {
+                metrics.onRequestDropped(eventType);
+            }
+        }
+        if (tracked) {
+            // the count acquired in sendRequest keeps this type in the table
+            InFlightType inFlightType = bus.mInFlightTypes.get(eventType);
+            if (inFlightType != null) {
+                bus.releaseInFlight(inFlightType, 1);
+            }
+        }
+    }
+
+    // ---------- COLLAPSED REQUESTS ----------
+
+    private boolean sendCachedResult(@NonNull final BusEvent event, @NonNull final RequestTarget target) {
+        Bundle output = mResultCache.get(new CacheKey(target, event.getBundleInput(), event.payload));
+        if (output == null) {
+            return false;
+        }
+        sendResult(this, target.cacheResult, event.bundleInput, output, null);
+        return true;
+    }
+
+    private void onHandlerReturned(@NonNull final BusEvent event, @NonNull final RequestTarget target) {
+        Bundle output = new Bundle(event.getBundleOutput());
+        // cancellable requests may have been cut short
+        if (event.handle == null) {
+            CacheKey key = new CacheKey(target, new Bundle(event.getBundleInput()), event.payload);
+            mResultCache.put(key, target.cacheResult, output, target.cacheTtlMillis);
+        }
+        sendResult(this, target.cacheResult, event.bundleInput, output, null);
+    }
+
+    /**
+     * Joined requests do not get a handler run of their own: the one run sends its results once, and they reach every
+     * receiver of the result types, the callers of the joined requests included.
+     *
+     * @return false if an equal request was queued already
+     */
+    private boolean scheduleCollapsed(@NonNull final BusEvent event, @NonNull final RequestTarget target,
+                                      final boolean canFind) {
+        Bundle input = event.getBundleInput();
+        int hash = 31 * (31 * System.identityHashCode(target) + bundleHashCode(input)) + valueHashCode(event.payload);
+        RequestTask task;
+        synchronized (mCollapsedRequests) {
+            RequestTask head = mCollapsedRequests.get(hash);
+            for (task = head; task != null; task = task.nextCollapsed) {
+                if (task.target == target && bundleEquals(task.event.getBundleInput(), input)
+                        && valueEquals(task.event.payload, event.payload)) {
+                    if (canFind) {
+                        // the task holds the type, so this is the one it acquired if it is tracked too
+                        task.inFlight = acquireInFlight(event.getType());
+                        task.inFlightCount++;
+                    }
+                    if (DEBUG) {
+                        Log.e(TAG, TAG + " collapse request " + event.getType());
+                    }
+                    return false;
+                }
+            }
+            task = new RequestTask(this, event, target, canFind ? acquireInFlight(event.getType()) : null);
+            task.collapsedHash = hash;
+            task.nextCollapsed = head;
+            mCollapsedRequests.put(hash, task);
+        }
+        schedule(task);
+        return true;
+    }
+
+    private void schedule(@NonNull final RequestTask task) {
+        task.scheduledNanos = mMetrics != null ? System.nanoTime() : 0;
+        FlightRecorder recorder = mRecorder;
+        if (recorder != null) {
+            recorder.record(FlightRecorder.REQUEST_ENQUEUED, task.type);
+        }
+        mScheduler.schedule(task);
+    }
+
+    /**
+     * Unlinks a task before its handler runs, a request sent after that must not join a run that may have sent its
+     * results already.
+     */
+    private void startCollapsed(@NonNull final RequestTask task) {
+        synchronized (mCollapsedRequests) {
+            RequestTask head = mCollapsedRequests.get(task.collapsedHash);
+            if (head == task) {
+                if (task.nextCollapsed == null) {
+                    mCollapsedRequests.remove(task.collapsedHash);
+                } else {
+                    mCollapsedRequests.put(task.collapsedHash, task.nextCollapsed);
+                }
+            } else {
+                for (RequestTask prev = head; prev != null; prev = prev.nextCollapsed) {
+                    if (prev.nextCollapsed == task) {
+                        prev.nextCollapsed = task.nextCollapsed;
+                        break;
+                    }
+                }
+            }
+            task.nextCollapsed = null;
+        }
+    }
+
+    private static int bundleHashCode(@NonNull final Bundle bundle) {
+        int hash = 0;
+        for (String key : bundle.keySet()) {
+            hash += key.hashCode() ^ valueHashCode(bundle.get(key));
+        }
+        return hash;
+    }
+
+    private static int valueHashCode(@Nullable final Object value) {
+        if (value == null) {
+            return 0;
+        } else if (value instanceof Bundle) {
+            return bundleHashCode((Bundle) value);
+        } else if (value instanceof Object[]) {
+            return Arrays.deepHashCode((Object[]) value);
+        } else if (value.getClass().isArray()) {
+            return Arrays.deepHashCode(new Object[]{value});
+        }
+        return value.hashCode();
+    }
+
+    private static boolean bundleEquals(@NonNull final Bundle a, @NonNull final Bundle b) {
+        if (a == b) {
+            return true;
+        }
+        if (a.size() != b.size()) {
+            return false;
+        }
+        for (String key : a.keySet()) {
+            if (!b.containsKey(key) || !valueEquals(a.get(key), b.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean valueEquals(@Nullable final Object a, @Nullable final Object b) {
+        if (a == b) {
+            return true;
+        } else if (a == null || b == null) {
+            return false;
+        } else if (a instanceof Bundle && b instanceof Bundle) {
+            return bundleEquals((Bundle) a, (Bundle) b);
+        } else if (a.getClass().isArray() && b.getClass().isArray()) {
+            return Arrays.deepEquals(new Object[]{a}, new Object[]{b});
+        }
+        return a.equals(b);
+    }
+
+    // ---------- COLLAPSED REQUESTS END ----------
+
+    /**
+     * Requests for services, sent on the main looper with one intent per service for everything posted meanwhile.
+     */
+    private final static class ServiceQueue implements Handler.Callback {
+
+        @NonNull
+        private final Context context;
+        @NonNull
+        private final Handler handler;
+        // guarded by this
+        @NonNull
+        private HashMap<Class<? extends BusResultService>, ArrayList<BusEvent>> pending = new HashMap<>();
+
+        private ServiceQueue(@NonNull final Context context) {
+            this.context = context;
+            this.handler = new Handler(Looper.getMainLooper(), this);
+        }
+
+        private void post(@NonNull final Class<? extends BusResultService> clazz, @NonNull final BusEvent event) {
+            boolean schedule;
+            synchronized (this) {
+                schedule = pending.isEmpty();
+                ArrayList<BusEvent> events = pending.get(clazz);
+                if (events == null) {
+                    events = new ArrayList<>();
+                    pending.put(clazz, events);
+                }
+                events.add(event);
+            }
+            if (schedule) {
+                handler.sendEmptyMessage(0);
+            }
+        }
+
+        @Override
+        public boolean handleMessage(@NonNull final Message msg) {
+            HashMap<Class<? extends BusResultService>, ArrayList<BusEvent>> batch;
+            synchronized (this) {
+                batch = pending;
+                pending = new HashMap<>();
+            }
+            for (Map.Entry<Class<? extends BusResultService>, ArrayList<BusEvent>> entry : batch.entrySet()) {
+                ArrayList<BusEvent> events = entry.getValue();
+                boolean[] tracked = new boolean[events.size()];
+                for (int i = 0; i < tracked.length; i++) {
+                    tracked[i] = events.get(i).tracked;
+                }
+                ComponentName component = context.startService(new Intent(context, entry.getKey())
+                        .putExtra(EVENTS_FOR_SERVICE, events.toArray(new BusEvent[events.size()]))
+                        .putExtra(EVENTS_TRACKED, tracked));
+                if (component == null) {
+                    Log.w(TAG, entry.getKey().getName() + " is not declared in the manifest, dropped "
+                            + events.size() + " requests");
+                    for (int i = 0; i < tracked.length; i++) {
+                        onServiceRequestDone(events.get(i).getType(), tracked[i], true);
+                    }
+                }
+            }
+            return true;
+        }
+    }
+
+    // receivers and flags of one result type, written under mResultIndex and read by sendResult without it
+    private final static class ResultSlot {
+
+        @Nullable
+        private volatile ResultHandler[] handlers;
+        private volatile boolean recyclable;
+        private volatile boolean sticky;
+        @Nullable
+        private volatile PatternMatches patterns;
+    }
+
+    private final static class PatternMatches {
+
+        // the mPatternHandlers the handlers were matched against
+        @NonNull
+        private final ResultHandler[] patternSet;
+        @NonNull
+        private final ResultHandler[] handlers;
+
+        private PatternMatches(@NonNull final ResultHandler[] patternSet, @NonNull final ResultHandler[] handlers) {
+            this.patternSet = patternSet;
+            this.handlers = handlers;
+        }
+    }
+
+    private final static class RequestTarget {
+
+        @NonNull
+        public final BusRequestReceiver receiver;
+        @NonNull
+        public final BusAnnotationProcessor.Invoker invoker;
+        public final int priority;
+        public final boolean collapse;
+        public final int cacheResult;
+        public final long cacheTtlMillis;
+
+        private RequestTarget(@NonNull final BusRequestReceiver receiver,
+                              @NonNull final BusAnnotationProcessor.Invoker invoker,
+                              final int priority,
+                              final boolean collapse,
+                              final int cacheResult,
+                              final long cacheTtlMillis) {
+            this.receiver = receiver;
+            this.invoker = invoker;
+            this.priority = priority;
+            this.collapse = collapse;
+            this.cacheResult = cacheResult;
+            this.cacheTtlMillis = cacheTtlMillis;
+        }
+    }
+
+    private final static class RequestTask extends BusScheduler.Task {
+
+        @NonNull
+        private final Bus bus;
+        @NonNull
+        private final BusEvent event;
+        @NonNull
+        private final RequestTarget target;
+        // for collapsed tasks guarded by mCollapsedRequests until startCollapsed
+        @Nullable
+        private InFlightType inFlight;
+        private int inFlightCount;
+        private int collapsedHash;
+        @Nullable
+        private RequestTask nextCollapsed;
+        private long scheduledNanos = 0;
+        @Nullable
+        private GatherState gather;
+
+        private RequestTask(@NonNull final Bus bus, @NonNull final BusEvent event, @NonNull final RequestTarget target,
+                            @Nullable final InFlightType inFlight) {
+            super(event.getType(), target.priority);
+            this.bus = bus;
+            this.event = event;
+            this.target = target;
+            this.inFlight = inFlight;
+            this.inFlightCount = inFlight == null ? 0 : 1;
+        }
+
+        @Override
+        public void run() {
+            boolean completed = false;
+            RuntimeException error = null;
+            if (target.collapse && event.handle == null) {
+                bus.startCollapsed(this);
+            }
+            try {
+                if (event.isCancelled() || bus.mClosed) {
+                    // dropped before it started
+                    return;
+                }
+                BusMetrics metrics = bus.mMetrics;
+                FlightRecorder recorder = bus.mRecorder;
+                long startNanos = metrics != null ? System.nanoTime() : 0;
+                if (recorder != null) {
+                    recorder.record(FlightRecorder.REQUEST_STARTED, type);
+                }
+                try {
+                    target.invoker.invoke(target.receiver, event);
+                    completed = true;
+                    if (target.cacheResult != NO_CACHE) {
+                        bus.onHandlerReturned(event, target);
+                    }
+                } catch (RuntimeException e) {
+                    if (event.stream == null) {
+                        throw e;
+                    }
+                    // goes out with the end result of the stream instead of the worker
+                    error = e;
+                } finally {
+                    if (recorder != null) {
+                        recorder.record(FlightRecorder.REQUEST_FINISHED, type);
+                    }
+                    if (metrics != null) {
+                        long finishNanos = System.nanoTime();
+                        metrics.onRequestExecuted(event.getType(),
+                                scheduledNanos == 0 ? 0 : startNanos - scheduledNanos, finishNanos - startNanos);
+                    }
+                }
+            } finally {
+                if (inFlight != null) {
+                    bus.releaseInFlight(inFlight, inFlightCount);
+                }
+                if (gather != null) {
+                    gather.onFinished(completed ? event : null);
+                }
+                if (event.stream != null) {
+                    event.stream.onHandlerFinished(completed, error);
+                }
+                if (event.journalEntry != null) {
+                    bus.mJournal.release(event.journalEntry);
+                }
+                if (event.handle != null) {
+                    event.handle.onFinished();
+                }
+            }
+        }
+    }
+
+    private final static class JournalEntry {
+
+        // guarded by the journal
+        private int offset;
+        private int pending;
+
+        private JournalEntry(final int offset) {
+            this.offset = offset;
+        }
+    }
+
+    private final static class GatherState {
+
+        @NonNull
+        private final Bus bus;
+        @NonNull
+        private final Gather gather;
+        @Nullable
+        private final Bundle input;
+        private final int total;
+        // guarded by this
+        @NonNull
+        private final Bundle merged = new Bundle();
+        private int finished = 0;
+
+        private GatherState(@NonNull final Bus bus, @NonNull final Gather gather, @Nullable final Bundle input,
+                            final int total) {
+            this.bus = bus;
+            this.gather = gather;
+            this.input = input;
+            this.total = total;
+        }
+
+        // event is null for handlers that were dropped or threw
+        private void onFinished(@Nullable final BusEvent event) {
+            Bundle partial = null;
+            boolean done;
+            synchronized (this) {
+                if (event != null) {
+                    gather.mCombiner.combine(merged, event);
+                }
+                finished++;
+                if (finished == gather.mQuorum && finished < total) {
+                    partial = new Bundle(merged);
+                }
+                done = finished == total;
+            }
+            if (partial != null) {
+                Bus.sendResult(bus, gather.mPartialResultType, input, partial, null);
+            }
+            if (done) {
+                sendResult();
+            }
+        }
+
+        private void sendResult() {
+            Bus.sendResult(bus, gather.mResultType, input, merged, null);
+        }
+    }
+
+    private final static class StreamState {
+
+        @NonNull
+        private final Bus bus;
+        @NonNull
+        private final Stream stream;
+        @Nullable
+        private final Bundle input;
+        @NonNull
+        private final RequestHandle handle;
+        // guarded by this
+        private int running;
+        private int buffered = 0;
+        private int emitted = 0;
+        private boolean cancelled = false;
+        @Nullable
+        private String error;
+
+        private StreamState(@NonNull final Bus bus, @NonNull final Stream stream, @Nullable final Bundle input,
+                            @NonNull final RequestHandle handle, final int running) {
+            this.bus = bus;
+            this.stream = stream;
+            this.input = input;
+            this.handle = handle;
+            this.running = running;
+        }
+
+        private boolean emit(@Nullable final Bundle chunk, @Nullable final Object payload) {
+            synchronized (this) {
+                try {
+                    while (buffered >= stream.mCapacity && !handle.isCancelled()) {
+                        if (handle.mDeadlineNanos == 0) {
+                            wait();
+                        } else {
+                            TimeUnit.NANOSECONDS.timedWait(this, handle.mDeadlineNanos - System.nanoTime());
+                        }
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    cancelled = true;
+                    return false;
+                }
+                if (handle.isCancelled()) {
+                    cancelled = true;
+                    return false;
+                }
+                buffered++;
+                emitted++;
+            }
+            Bus.sendResult(bus, stream.mChunkResultType, input, chunk, payload, this);
+            return true;
+        }
+
+        private synchronized void onChunkDelivered() {
+            buffered--;
+            notifyAll();
+        }
+
+        private synchronized void wake() {
+            notifyAll();
+        }
+
+        // neither completed nor failed for handlers dropped before they started
+        private void onHandlerFinished(final boolean completed, @Nullable final RuntimeException e) {
+            synchronized (this) {
+                if (e != null && error == null) {
+                    Throwable cause = e.getCause() instanceof InvocationTargetException ? e.getCause().getCause() : e;
+                    error = String.valueOf(cause);
+                } else if (!completed && e == null) {
+                    cancelled = true;
+                }
+                if (--running > 0) {
+                    return;
+                }
             }
+            sendEnd();
         }
-    }
 
-    @NonNull
-    public static Context getContext() {
-        return sInstance.mContext;
+        private void sendEnd() {
+            Bundle output = new Bundle();
+            synchronized (this) {
+                output.putInt(STREAM_CHUNK_COUNT, emitted);
+                if (error != null) {
+                    output.putString(STREAM_ERROR, error);
+                }
+                if (cancelled) {
+                    output.putBoolean(STREAM_CANCELLED, true);
+                }
+            }
+            Bus.sendResult(bus, stream.mEndResultType, input, output, null);
+        }
     }
 
-    public synchronized static void subscribe(@NonNull final BusResultReceiver receiver) {
-        if (sInstance.mHandlerMap.containsKey(receiver)) {
-            return;
+    private final static class ResultHandler {
+
+        @NonNull
+        private final Bus bus;
+        // exactly one of them is set
+        @Nullable
+        private final BusResultReceiver receiver;
+        @Nullable
+        private final WeakReference<BusResultReceiver> weakReceiver;
+        public final int mode;
+        @Nullable
+        public final Activity owner;
+        public final long subscribedAtMillis = SystemClock.elapsedRealtime();
+        @NonNull
+        public final BusAnnotationProcessor.HandlerTable table;
+        // set for the threads the receiver uses, THREAD_POSTING needs no queue
+        @Nullable
+        public final DeliveryQueue queue;
+        @Nullable
+        public final DeliveryQueue mainQueue;
+        @Nullable
+        public final DeliveryQueue backgroundQueue;
+        // guarded by their queue, index of the pending event of every coalesced type
+        @NonNull
+        private final SparseIntArray pending = new SparseIntArray();
+        @NonNull
+        private final SparseIntArray mainPending = new SparseIntArray();
+        @NonNull
+        private final SparseIntArray backgroundPending = new SparseIntArray();
+        volatile boolean active = true;
+
+        public ResultHandler(@NonNull final Bus bus,
+                             @NonNull final BusResultReceiver receiver,
+                             final int mode,
+                             @Nullable final Activity owner,
+                             @NonNull final BusAnnotationProcessor.HandlerTable table,
+                             @Nullable final DeliveryQueue queue,
+                             @Nullable final DeliveryQueue mainQueue,
+                             @Nullable final DeliveryQueue backgroundQueue) {
+            this.bus = bus;
+            this.receiver = mode == Subscription.WEAK ? null : receiver;
+            this.weakReceiver = mode == Subscription.WEAK ? new WeakReference<>(receiver) : null;
+            this.mode = mode;
+            this.owner = owner;
+            this.table = table;
+            this.queue = queue;
+            this.mainQueue = mainQueue;
+            this.backgroundQueue = backgroundQueue;
         }
-        BusAnnotationProcessor.processCacheResult(receiver);
-        ResultHandler handler = new ResultHandler(receiver);
-        sInstance.mHandlerMap.put(receiver, handler);
-        ArrayList<ResultHandler> listBuf = new ArrayList<>(sInstance.mResultHandlers);
-        listBuf.add(handler);
-        sInstance.mResultHandlers = listBuf;
-    }
 
-    public synchronized static void unSubscribe(@NonNull final BusResultReceiver receiver) {
-        Bus bus = sInstance;
-        ArrayList<ResultHandler> listBuf = new ArrayList<>(bus.mResultHandlers);
-        ResultHandler resultHandler = (ResultHandler) bus.mHandlerMap.get(receiver);
-        listBuf.remove(resultHandler);
-        bus.mHandlerMap.remove(receiver);
-        bus.mResultHandlers = listBuf;
-    }
+        /**
+         * @return false for {@link #THREAD_POSTING} types, which the caller delivers with {@link #deliverNow}
+         */
+        private boolean post(@NonNull final BusEvent event) {
+            switch (table.threadOf(event.getType())) {
+                case THREAD_POSTING:
+                    return false;
+                case THREAD_MAIN:
+                    mainQueue.post(this, event);
+                    return true;
+                case THREAD_BACKGROUND:
+                    backgroundQueue.post(this, event);
+                    return true;
+                default:
+                    queue.post(this, event);
+                    return true;
+            }
+        }
 
-    public static void sendResult(final int eventType) {
-        sendResult(eventType, null, null);
-    }
+        private void deliverNow(@NonNull final BusEvent event) {
+            try {
+                deliver(event);
+            } finally {
+                event.onDelivered();
+            }
+        }
 
-    public static void sendResult(final int eventType,
-                                  @Nullable final Bundle bundleInput,
-                                  @Nullable final Bundle bundleOutput) {
-        BusEvent event = new BusEvent(eventType, bundleInput, bundleOutput);
-        Bus bus = sInstance;
-        for (ResultHandler handler : bus.mResultHandlers) {
-            if (BusAnnotationProcessor.canProcessEventResult(event, handler.receiver)) {
-                Bus.sendEventToTarget(handler, event);
+        @NonNull
+        private SparseIntArray pendingFor(@NonNull final DeliveryQueue deliveryQueue) {
+            return deliveryQueue == queue ? pending : deliveryQueue == mainQueue ? mainPending : backgroundPending;
+        }
+
+        @Nullable
+        private BusResultReceiver getReceiver() {
+            return receiver != null ? receiver : weakReceiver.get();
+        }
+
+        private boolean coalesces(final int type) {
+            return table.coalesces(type);
+        }
+
+        private boolean deliver(@NonNull final BusEvent event) {
+            if (!active) {
+                return false;
+            }
+            BusResultReceiver receiver = getReceiver();
+            if (receiver == null) {
+                bus.removeDeadHandler(this);
+                return false;
+            }
+            BusMetrics metrics = bus.mMetrics;
+            FlightRecorder recorder = bus.mRecorder;
+            if (metrics == null && recorder == null) {
+                return table.invokeResult(receiver, event);
+            }
+            int type = event.getType();
+            long startNanos = metrics != null ? System.nanoTime() : 0;
+            if (recorder != null) {
+                recorder.record(FlightRecorder.DELIVERY_STARTED, type);
+            }
+            try {
+                return table.invokeResult(receiver, event);
+            } finally {
+                if (recorder != null) {
+                    recorder.record(FlightRecorder.DELIVERY_FINISHED, type);
+                }
+                if (metrics != null) {
+                    metrics.onResultDelivered(type, receiver, System.nanoTime() - startNanos);
+                }
             }
         }
     }
 
-    public static void sendRequest(final int eventType) {
-        sendRequest(eventType, null, null, false);
-    }
+    /**
+     * Results for the receivers of one looper. Everything posted before the queue is drained goes out in a single
+     * message, coalesced types keep only their latest event. On the main looper the next frame callback drains it, so
+     * results arriving within a frame are handled together; a delayed message drains it too when no frame comes, e.g.
+     * with the screen off.
+     */
+    private final static class DeliveryQueue implements Handler.Callback {
 
-    public static void sendRequest(final int eventType,
-                                   @Nullable final Bundle bundleInput,
-                                   @Nullable final Bundle bundleOutput) {
-        sendRequest(eventType, bundleInput, bundleOutput, false);
-    }
+        private static final int INITIAL_CAPACITY = 16;
+        private static final int MSG_DRAIN = 0;
+        private static final int MSG_SCHEDULE_FRAME = 1;
+        private static final long FRAME_FALLBACK_MILLIS = 50;
 
-    public static void sendRequest(final int eventType,
-                                   @Nullable final Bundle bundleInput,
-                                   @Nullable final Bundle bundleOutput,
-                                   final boolean canFind) {
-        final BusEvent event = new BusEvent(eventType, bundleInput, bundleOutput);
-        Bus bus = sInstance;
-        for (BusRequestReceiver requestReceiver : bus.mRequestList) {
-            if (BusAnnotationProcessor.canProcessEventRequest(event, requestReceiver)) {
-                final BusRequestReceiver requestReceiverParam = requestReceiver;
-                final int id = canFind ? addEventToTable(event) : NOT_FIND_ID;
-                sInstance.mExecutorService.execute(new Runnable() {
-                    @Override
-                    public void run() {
-                        int priorityMain = Looper.getMainLooper().getThread().getPriority();
-                        if (priorityMain <= Thread.currentThread().getPriority()) {
-                            int priorityThis = priorityMain > Thread.MIN_PRIORITY ? priorityMain - 1 : priorityMain;
-                            Thread.currentThread().setPriority(priorityThis);
-                        }
-                        BusAnnotationProcessor.processEventAnnotationRequest(event, requestReceiverParam);
-                        removeEventWithId(id);
+        @NonNull
+        private final Handler handler;
+        @Nullable
+        private final FrameCallback frameCallback;
+
+        @NonNull
+        private ResultHandler[] handlers = new ResultHandler[INITIAL_CAPACITY];
+        @NonNull
+        private BusEvent[] events = new BusEvent[INITIAL_CAPACITY];
+        @NonNull
+        private ResultHandler[] drainHandlers = new ResultHandler[INITIAL_CAPACITY];
+        @NonNull
+        private BusEvent[] drainEvents = new BusEvent[INITIAL_CAPACITY];
+        private int size = 0;
+        private boolean scheduled = false;
+
+        private DeliveryQueue(@NonNull final Looper looper) {
+            handler = new Handler(looper, this);
+            frameCallback = looper == Looper.getMainLooper() && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN
+                    ? new FrameCallback(this) : null;
+        }
+
+        private void post(@NonNull final ResultHandler resultHandler, @NonNull final BusEvent event) {
+            BusEvent dropped = null;
+            boolean schedule = false;
+            synchronized (this) {
+                SparseIntArray pending = resultHandler.pendingFor(this);
+                int index = resultHandler.coalesces(event.getType()) ? pending.get(event.getType(), -1) : -1;
+                if (index >= 0) {
+                    dropped = events[index];
+                    events[index] = event;
+                } else {
+                    if (resultHandler.coalesces(event.getType())) {
+                        pending.put(event.getType(), size);
                     }
-                });
+                    if (size == handlers.length) {
+                        ResultHandler[] newHandlers = new ResultHandler[size * 2];
+                        BusEvent[] newEvents = new BusEvent[size * 2];
+                        System.arraycopy(handlers, 0, newHandlers, 0, size);
+                        System.arraycopy(events, 0, newEvents, 0, size);
+                        handlers = newHandlers;
+                        events = newEvents;
+                    }
+                    handlers[size] = resultHandler;
+                    events[size] = event;
+                    size++;
+                    schedule = !scheduled;
+                    scheduled = true;
+                }
+            }
+            if (dropped != null) {
+                dropped.onDelivered();
+            }
+            if (schedule) {
+                if (frameCallback == null) {
+                    handler.sendEmptyMessage(MSG_DRAIN);
+                    return;
+                }
+                if (Looper.myLooper() == handler.getLooper()) {
+                    frameCallback.schedule();
+                } else {
+                    // the Choreographer is per thread, so the frame callback is posted from the main looper
+                    handler.sendEmptyMessage(MSG_SCHEDULE_FRAME);
+                }
+                Message fallback = handler.obtainMessage(MSG_DRAIN);
+                if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP_MR1) {
+                    // not held back by the sync barriers of a traversal that is late already
+                    fallback.setAsynchronous(true);
+                }
+                handler.sendMessageDelayed(fallback, FRAME_FALLBACK_MILLIS);
+            }
+        }
+
+        @Override
+        public boolean handleMessage(@NonNull final Message msg) {
+            if (msg.what == MSG_SCHEDULE_FRAME) {
+                frameCallback.schedule();
+            } else {
+                drain();
             }
+            return true;
         }
-        for (Class<? extends BusResultService> clazz : bus.mServices) {
-            if (BusAnnotationProcessor.canProcessEventRequestClass(event, clazz)) {
-                bus.mContext.startService(bus.createIntent(event, clazz));
+
+        private void drain() {
+            if (frameCallback != null) {
+                // whichever of the frame and the fallback came first, on the main looper both
+                handler.removeMessages(MSG_DRAIN);
+                frameCallback.cancel();
+            }
+            ResultHandler[] batchHandlers;
+            BusEvent[] batchEvents;
+            int batchSize;
+            synchronized (this) {
+                batchHandlers = handlers;
+                batchEvents = events;
+                batchSize = size;
+                handlers = drainHandlers.length >= batchHandlers.length ? drainHandlers : new ResultHandler[batchHandlers.length];
+                events = drainEvents.length >= batchEvents.length ? drainEvents : new BusEvent[batchEvents.length];
+                size = 0;
+                scheduled = false;
+                for (int i = 0; i < batchSize; i++) {
+                    batchHandlers[i].pendingFor(this).clear();
+                }
+            }
+            try {
+                for (int i = 0; i < batchSize; i++) {
+                    ResultHandler resultHandler = batchHandlers[i];
+                    BusEvent event = batchEvents[i];
+                    batchHandlers[i] = null;
+                    batchEvents[i] = null;
+                    try {
+                        resultHandler.deliver(event);
+                    } finally {
+                        event.onDelivered();
+                    }
+                }
+            } finally {
+                synchronized (this) {
+                    drainHandlers = batchHandlers;
+                    drainEvents = batchEvents;
+                }
             }
         }
     }
 
-    // ---------- PUBLIC METHODS FINISH ----------
+    // loaded only on API 16+
+    private final static class FrameCallback implements Choreographer.FrameCallback {
 
-    private static void sendEventToTarget(@NonNull final Handler handler, @NonNull final BusEvent event) {
-        Message message = Message.obtain(handler, 0, 0, 0, event);
-        assert message != null;
-        message.sendToTarget();
-    }
+        @NonNull
+        private final DeliveryQueue queue;
 
-    @NonNull
-    private Intent createIntent(@NonNull final BusEvent event, @NonNull final Class<? extends BusResultService> clazz) {
-        return new Intent(mContext, clazz).putExtra(EVENT_FOR_SERVICE, event);
+        private FrameCallback(@NonNull final DeliveryQueue queue) {
+            this.queue = queue;
+        }
+
+        private void schedule() {
+            Choreographer.getInstance().postFrameCallback(this);
+        }
+
+        private void cancel() {
+            Choreographer.getInstance().removeFrameCallback(this);
+        }
+
+        @Override
+        public void doFrame(final long frameTimeNanos) {
+            queue.drain();
+        }
     }
 
-    private final static class ResultCallback implements Handler.Callback {
+    // loaded only on API 14+, guarded by mResultIndex
+    private final static class ScopeCallbacks implements Application.ActivityLifecycleCallbacks {
 
         @NonNull
-        public final BusResultReceiver receiver;
+        private final Bus bus;
+        @NonNull
+        private final IdentityHashMap<Activity, ArrayList<BusResultReceiver>> receivers = new IdentityHashMap<>();
 
-        private ResultCallback(@NonNull final BusResultReceiver receiver) {
-            this.receiver = receiver;
+        private ScopeCallbacks(@NonNull final Bus bus) {
+            this.bus = bus;
+        }
+
+        private void add(@NonNull final Activity owner, @NonNull final BusResultReceiver receiver) {
+            ArrayList<BusResultReceiver> list = receivers.get(owner);
+            if (list == null) {
+                list = new ArrayList<>();
+                receivers.put(owner, list);
+            }
+            list.add(receiver);
+        }
+
+        private void remove(@NonNull final Activity owner, @NonNull final BusResultReceiver receiver) {
+            ArrayList<BusResultReceiver> list = receivers.get(owner);
+            if (list != null && list.remove(receiver) && list.isEmpty()) {
+                receivers.remove(owner);
+            }
         }
 
         @Override
-        public boolean handleMessage(@NonNull final Message msg) {
-            return msg.obj != null && BusAnnotationProcessor.processEventAnnotationResult((BusEvent) msg.obj, receiver);
+        public void onActivityDestroyed(@NonNull final Activity activity) {
+            ArrayList<BusResultReceiver> list;
+            synchronized (bus.mResultIndex) {
+                list = receivers.remove(activity);
+            }
+            if (list != null) {
+                for (BusResultReceiver receiver : list) {
+                    unSubscribe(bus, receiver);
+                }
+            }
         }
-    }
 
-    private final static class ResultHandler extends Handler {
+        @Override
+        public void onActivityCreated(final Activity activity, final Bundle savedInstanceState) {
+        }
 
-        @NonNull
-        public final BusResultReceiver receiver;
+        @Override
+        public void onActivityStarted(final Activity activity) {
+        }
 
-        public ResultHandler(@NonNull final BusResultReceiver receiver) {
-            super(new ResultCallback(receiver));
-            this.receiver = receiver;
+        @Override
+        public void onActivityResumed(final Activity activity) {
+        }
+
+        @Override
+        public void onActivityPaused(final Activity activity) {
+        }
+
+        @Override
+        public void onActivityStopped(final Activity activity) {
+        }
+
+        @Override
+        public void onActivitySaveInstanceState(final Activity activity, final Bundle outState) {
         }
     }
 
@@ -479,90 +4332,158 @@ public final class Bus {
     private final static class BusAnnotationProcessor {
 
         @NonNull
-        private static final HashMap<String, Method> requestCache = new HashMap<>();
+        private static final String DISPATCHER_SUFFIX = "$$BusDispatcher";
+
         @NonNull
-        private static final HashMap<String, Method> resultCache = new HashMap<>();
+        private static final HashMap<Class, HandlerTable> handlerCache = new HashMap<>();
         @NonNull
-        private static final HashMap<String, Method> resultReceiveAllEventCache = new HashMap<>();
+        private static final HashMap<Class, BusDispatcher> dispatcherCache = new HashMap<>();
+        @Nullable
+        private static volatile BusIndex index = null;
 
         @NonNull
-        private static String getKey(@NonNull final BusEvent event, @NonNull final Object o) {
-            return o.getClass().getCanonicalName() + "_" + event.getType();
+        public static HandlerTable processCacheRequest(@NonNull final Object o) {
+            return processCacheRequestClass(o.getClass());
         }
 
         @NonNull
-        private static String getKey(final int i, @NonNull final Class o) {
-            return o.getCanonicalName() + "_" + i;
-        }
-
-        public static boolean canProcessEventRequest(@NonNull final BusEvent event, @NonNull final Object o) {
-            return requestCache.get(getKey(event, o)) != null;
-        }
-
-        public static boolean canProcessEventRequestClass(@NonNull final BusEvent event, @NonNull final Class o) {
-            return requestCache.get(getKey(event.getType(), o)) != null;
-        }
-
-        public static boolean canProcessEventResult(@NonNull final BusEvent event, @NonNull final Object o) {
-            return resultCache.get(getKey(event, o)) != null || resultReceiveAllEventCache.get(o.getClass().getCanonicalName()) != null;
+        public static HandlerTable processCacheRequestClass(@NonNull final Class clazz) {
+            return processCacheClass(clazz);
         }
 
-        public static void processCacheRequest(@NonNull final Object o) {
-            processCacheRequestClass(o.getClass());
+        @NonNull
+        public static HandlerTable processCacheResult(@NonNull final Object o) {
+            return processCacheClass(o.getClass());
         }
 
-        public static void processCacheRequestClass(@NonNull final Class clazz) {
-            if (requestCache.containsKey(clazz.getCanonicalName())) {
-                return;
+        @NonNull
+        private static HandlerTable processCacheClass(@NonNull final Class clazz) {
+            synchronized (handlerCache) {
+                HandlerTable table = handlerCache.get(clazz);
+                if (table != null) {
+                    return table;
+                }
             }
-            Method[] methods = clazz.getMethods();
-            synchronized (requestCache) {
-                for (Method method : methods) {
-                    EventTakerRequest eventTaker = method.getAnnotation(EventTakerRequest.class);
-                    if (eventTaker != null) {
-                        requestCache.put(getKey(eventTaker.value(), clazz), method);
+            HandlerTable table = new HandlerTable();
+            BusDispatcher dispatcher = findDispatcher(clazz);
+            if (dispatcher != null) {
+                Invoker request = new DispatcherInvoker(dispatcher, DispatcherInvoker.REQUEST);
+                Invoker result = new DispatcherInvoker(dispatcher, DispatcherInvoker.RESULT);
+                int[] requestTypes = dispatcher.requestTypes();
+                int[] requestPriorities = dispatcher.requestPriorities();
+                int[] requestCacheResults = dispatcher.requestCacheResults();
+                long[] requestCacheTtls = dispatcher.requestCacheTtls();
+                for (int i = 0; i < requestTypes.length; i++) {
+                    table.requests.put(requestTypes[i], request);
+                    table.requestPriorities.put(requestTypes[i], requestPriorities[i]);
+                    table.cacheResult(requestTypes[i], requestCacheResults[i], requestCacheTtls[i]);
+                }
+                for (int value : dispatcher.collapsedRequestTypes()) {
+                    table.requestCollapsed.put(value, true);
+                }
+                for (int value : dispatcher.resultTypes()) {
+                    if (value == DEFAULT_EVENT_TYPE) {
+                        table.resultAll = new DispatcherInvoker(dispatcher, DispatcherInvoker.RESULT_ALL);
+                    } else {
+                        table.results.put(value, result);
                     }
                 }
-                requestCache.put(clazz.getCanonicalName(), null);
-            }
-
-        }
-
-        public static void processCacheResult(@NonNull final Object o) {
-            if (resultCache.containsKey(o.getClass().getCanonicalName())) {
-                return;
-            }
-            Method[] methods = o.getClass().getMethods();
-            synchronized (resultCache) {
-                for (Method method : methods) {
-                    EventTakerResult eventTaker = method.getAnnotation(EventTakerResult.class);
-                    if (eventTaker == null) {
+                for (int value : dispatcher.coalescedResultTypes()) {
+                    table.coalesce(value);
+                }
+                int[] resultTypes = dispatcher.resultTypes();
+                int[] resultThreads = dispatcher.resultThreads();
+                for (int i = 0; i < resultTypes.length; i++) {
+                    table.deliverOn(resultTypes[i], resultThreads[i]);
+                }
+                int[] resultPatterns = dispatcher.resultPatterns();
+                for (int i = 0; i < resultPatterns.length; i += RESULT_PATTERN_SIZE) {
+                    table.patterns.add(new ResultPattern(resultPatterns[i], resultPatterns[i + 1], resultPatterns[i + 2],
+                            resultPatterns[i + 3], resultPatterns[i + 4], resultPatterns[i + 5] != 0,
+                            new DispatcherInvoker(dispatcher, DispatcherInvoker.RESULT_PATTERN, i / RESULT_PATTERN_SIZE)));
+                }
+            } else {
+                for (Method method : clazz.getMethods()) {
+                    EventTakerRequest eventTakerRequest = method.getAnnotation(EventTakerRequest.class);
+                    if (eventTakerRequest != null) {
+                        table.requests.put(eventTakerRequest.value(), new MethodInvoker(method));
+                        table.requestPriorities.put(eventTakerRequest.value(), eventTakerRequest.priority());
+                        if (eventTakerRequest.collapse()) {
+                            table.requestCollapsed.put(eventTakerRequest.value(), true);
+                        }
+                        table.cacheResult(eventTakerRequest.value(), eventTakerRequest.cacheResult(),
+                                eventTakerRequest.cacheTtlMillis());
+                    }
+                    EventTakerResult eventTakerResult = method.getAnnotation(EventTakerResult.class);
+                    if (eventTakerResult == null) {
+                        continue;
+                    }
+                    if ((eventTakerResult.category() & ~eventTakerResult.categoryMask()) != 0) {
+                        throw new RuntimeException("category has bits outside categoryMask in object=" + clazz.getName()
+                                + " method=" + method.getName());
+                    }
+                    if (ResultPattern.isPattern(eventTakerResult.rangeFrom(), eventTakerResult.rangeTo(),
+                            eventTakerResult.categoryMask())) {
+                        table.patterns.add(new ResultPattern(eventTakerResult.rangeFrom(), eventTakerResult.rangeTo(),
+                                eventTakerResult.categoryMask(), eventTakerResult.category(), eventTakerResult.thread(),
+                                eventTakerResult.coalesce(), new MethodInvoker(method)));
                         continue;
                     }
-                    int[] values = eventTaker.value();
-                    for (int value : values) {
+                    for (int value : eventTakerResult.value()) {
                         if (value == DEFAULT_EVENT_TYPE) {
-                            resultReceiveAllEventCache.put(o.getClass().getCanonicalName(), method);
+                            table.resultAll = new MethodInvoker(method);
                         } else {
-                            resultCache.put(getKey(value, o.getClass()), method);
+                            table.results.put(value, new MethodInvoker(method));
                         }
+                        if (eventTakerResult.coalesce()) {
+                            table.coalesce(value);
+                        }
+                        table.deliverOn(value, eventTakerResult.thread());
                     }
                 }
-                resultCache.put(o.getClass().getCanonicalName(), null);
+            }
+            synchronized (handlerCache) {
+                HandlerTable cached = handlerCache.get(clazz);
+                if (cached != null) {
+                    return cached;
+                }
+                handlerCache.put(clazz, table);
+                return table;
             }
         }
 
         public static boolean processEventAnnotationRequest(@NonNull final BusEvent event, @NonNull final Object o) {
-            Method needMethod = requestCache.get(getKey(event, o));
-            return invokeMethod(needMethod, o, event);
+            return processCacheClass(o.getClass()).invokeRequest(o, event);
         }
 
         public static boolean processEventAnnotationResult(@NonNull final BusEvent event, @NonNull final Object o) {
-            Method defaultValueMethod = resultReceiveAllEventCache.get(o.getClass().getCanonicalName());
-            Method needMethod = resultCache.get(getKey(event, o));
-            boolean result = invokeMethod(needMethod, o, event);
-            result = invokeMethod(defaultValueMethod, o, event) || result;
-            return result;
+            return processCacheClass(o.getClass()).invokeResult(o, event);
+        }
+
+        @Nullable
+        private static BusDispatcher findDispatcher(@NonNull final Class clazz) {
+            synchronized (dispatcherCache) {
+                if (dispatcherCache.containsKey(clazz)) {
+                    return dispatcherCache.get(clazz);
+                }
+                BusIndex busIndex = index;
+                BusDispatcher dispatcher = busIndex != null ? busIndex.getDispatcher(clazz) : null;
+                if (dispatcher == null) {
+                    try {
+                        dispatcher = (BusDispatcher) Class.forName(clazz.getName() + DISPATCHER_SUFFIX, true,
+                                clazz.getClassLoader()).newInstance();
+                    } catch (ClassNotFoundException e) {
+                        dispatcher = null;
+                    } catch (InstantiationException | IllegalAccessException e) {
+                        throw new RuntimeException(e);
+                    }
+                }
+                dispatcherCache.put(clazz, dispatcher);
+                if (DEBUG) {
+                    Log.e(TAG, TAG + " dispatcher " + clazz.getName() + " generated=" + (dispatcher != null));
+                }
+                return dispatcher;
+            }
         }
 
         private static boolean invokeMethod(@Nullable final Method method, @NonNull final Object o, @NonNull final BusEvent event) {
@@ -584,5 +4505,208 @@ public final class Bus {
                 throw new RuntimeException(e);
             }
         }
+
+        // immutable once cached, so it is read without locking
+        private final static class HandlerTable {
+
+            @NonNull
+            private final SparseArray<Invoker> requests = new SparseArray<>();
+            @NonNull
+            private final SparseIntArray requestPriorities = new SparseIntArray();
+            @NonNull
+            private final SparseBooleanArray requestCollapsed = new SparseBooleanArray();
+            @NonNull
+            private final SparseIntArray requestCacheResults = new SparseIntArray();
+            @NonNull
+            private final SparseArray<Long> requestCacheTtls = new SparseArray<>();
+            @NonNull
+            private final SparseArray<Invoker> results = new SparseArray<>();
+            @Nullable
+            private Invoker resultAll;
+            @NonNull
+            private final SparseBooleanArray coalesced = new SparseBooleanArray();
+            private boolean coalesceAll = false;
+            @NonNull
+            private final SparseIntArray resultThreads = new SparseIntArray();
+            private int resultAllThread = THREAD_SUBSCRIBER;
+            @NonNull
+            private final ArrayList<ResultPattern> patterns = new ArrayList<>();
+
+            private void cacheResult(final int type, final int resultType, final long ttlMillis) {
+                if (resultType != NO_CACHE) {
+                    requestCacheResults.put(type, resultType);
+                    requestCacheTtls.put(type, ttlMillis);
+                }
+            }
+
+            private void coalesce(final int type) {
+                if (type == DEFAULT_EVENT_TYPE) {
+                    coalesceAll = true;
+                } else {
+                    coalesced.put(type, true);
+                }
+            }
+
+            private void deliverOn(final int type, final int thread) {
+                if (type == DEFAULT_EVENT_TYPE) {
+                    resultAllThread = thread;
+                } else {
+                    resultThreads.put(type, thread);
+                }
+            }
+
+            @Nullable
+            private ResultPattern findPattern(final int type) {
+                for (int i = 0; i < patterns.size(); i++) {
+                    if (patterns.get(i).matches(type)) {
+                        return patterns.get(i);
+                    }
+                }
+                return null;
+            }
+
+            private boolean matchesPattern(final int type) {
+                return findPattern(type) != null;
+            }
+
+            private boolean coalesces(final int type) {
+                if (coalesceAll || coalesced.get(type)) {
+                    return true;
+                }
+                ResultPattern pattern = results.get(type) == null ? findPattern(type) : null;
+                return pattern != null && pattern.coalesce;
+            }
+
+            // a catch-all receiver gets one delivery for both of its methods, on the thread of the typed one if any
+            private int threadOf(final int type) {
+                if (patterns.isEmpty() || resultThreads.indexOfKey(type) >= 0) {
+                    return resultThreads.get(type, resultAllThread);
+                }
+                ResultPattern pattern = findPattern(type);
+                return pattern != null ? pattern.thread : resultAllThread;
+            }
+
+            private boolean usesThread(final int thread) {
+                if (resultAll != null && resultAllThread == thread) {
+                    return true;
+                }
+                for (int i = 0; i < patterns.size(); i++) {
+                    if (patterns.get(i).thread == thread) {
+                        return true;
+                    }
+                }
+                for (int i = 0; i < resultThreads.size(); i++) {
+                    if (resultThreads.valueAt(i) == thread) {
+                        return true;
+                    }
+                }
+                return false;
+            }
+
+            private boolean invokeRequest(@NonNull final Object o, @NonNull final BusEvent event) {
+                Invoker needInvoker = requests.get(event.getType());
+                return needInvoker != null && needInvoker.invoke(o, event);
+            }
+
+            private boolean invokeResult(@NonNull final Object o, @NonNull final BusEvent event) {
+                Invoker needInvoker = results.get(event.getType());
+                boolean result = needInvoker != null && needInvoker.invoke(o, event);
+                for (int i = 0; i < patterns.size(); i++) {
+                    ResultPattern pattern = patterns.get(i);
+                    if (pattern.matches(event.getType())) {
+                        result = pattern.invoker.invoke(o, event) || result;
+                    }
+                }
+                result = (resultAll != null && resultAll.invoke(o, event)) || result;
+                return result;
+            }
+        }
+
+        private final static class ResultPattern {
+
+            private final int from;
+            private final int to;
+            private final int mask;
+            private final int category;
+            private final int thread;
+            private final boolean coalesce;
+            @NonNull
+            private final Invoker invoker;
+
+            private ResultPattern(final int from, final int to, final int mask, final int category, final int thread,
+                                  final boolean coalesce, @NonNull final Invoker invoker) {
+                this.from = from;
+                this.to = to;
+                this.mask = mask;
+                this.category = category;
+                this.thread = thread;
+                this.coalesce = coalesce;
+                this.invoker = invoker;
+            }
+
+            private static boolean isPattern(final int from, final int to, final int mask) {
+                return from <= to || mask != 0;
+            }
+
+            private boolean matches(final int type) {
+                return (from > to || (type >= from && type <= to)) && (type & mask) == category;
+            }
+        }
+
+        private static abstract class Invoker {
+            abstract boolean invoke(@NonNull final Object o, @NonNull final BusEvent event);
+        }
+
+        private final static class MethodInvoker extends Invoker {
+
+            @NonNull
+            private final Method method;
+
+            private MethodInvoker(@NonNull final Method method) {
+                this.method = method;
+            }
+
+            @Override
+            boolean invoke(@NonNull final Object o, @NonNull final BusEvent event) {
+                return invokeMethod(method, o, event);
+            }
+        }
+
+        private final static class DispatcherInvoker extends Invoker {
+
+            private static final int REQUEST = 0;
+            private static final int RESULT = 1;
+            private static final int RESULT_ALL = 2;
+            private static final int RESULT_PATTERN = 3;
+
+            @NonNull
+            private final BusDispatcher dispatcher;
+            private final int kind;
+            private final int pattern;
+
+            private DispatcherInvoker(@NonNull final BusDispatcher dispatcher, final int kind) {
+                this(dispatcher, kind, 0);
+            }
+
+            private DispatcherInvoker(@NonNull final BusDispatcher dispatcher, final int kind, final int pattern) {
+                this.dispatcher = dispatcher;
+                this.kind = kind;
+                this.pattern = pattern;
+            }
+
+            @Override
+            boolean invoke(@NonNull final Object o, @NonNull final BusEvent event) {
+                switch (kind) {
+                    case REQUEST:
+                        return dispatcher.dispatchRequest(o, event);
+                    case RESULT:
+                        return dispatcher.dispatchResult(o, event);
+                    case RESULT_PATTERN:
+                        return dispatcher.dispatchResultPattern(o, pattern, event);
+                    default:
+                        return dispatcher.dispatchResultAll(o, event);
+                }
+            }
+        }
     }
-}
\ No newline at end of file
+}
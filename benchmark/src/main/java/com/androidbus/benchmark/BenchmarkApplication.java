@@ -0,0 +1,52 @@
+package com.androidbus.benchmark;
+
+import android.os.Looper;
+import android.support.annotation.NonNull;
+import android.support.annotation.Nullable;
+
+import com.androidbus.core.Bus;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Boots the bus the same way an app does, on top of the stub looper of the calling thread.
+ */
+public class BenchmarkApplication extends Bus.BusApplication {
+
+    private static final String RECORDER_PROPERTY = "androidbus.recorder";
+
+    @NonNull
+    private final List<Bus.BusRequestReceiver> mInboxLayers;
+
+    private BenchmarkApplication(@NonNull final List<Bus.BusRequestReceiver> inboxLayers) {
+        mInboxLayers = inboxLayers;
+    }
+
+    @Override
+    public List<Bus.BusRequestReceiver> createListInboxLayers() {
+        return mInboxLayers;
+    }
+
+    /**
+     * On like in an app unless the run was started with {@code -Precorder=false}.
+     */
+    @Nullable
+    @Override
+    protected Bus.FlightRecorder createFlightRecorder() {
+        return Boolean.parseBoolean(System.getProperty(RECORDER_PROPERTY, "true")) ? super.createFlightRecorder() : null;
+    }
+
+    /**
+     * Makes the calling thread the main looper thread, so subscribers get frame batched delivery as on a device.
+     */
+    @NonNull
+    public static Looper start(@NonNull final Bus.BusRequestReceiver... inboxLayers) {
+        if (Looper.myLooper() == null) {
+            Looper.prepareMainLooper();
+        }
+        new BenchmarkApplication(new ArrayList<>(Arrays.asList(inboxLayers))).onCreate();
+        return Looper.myLooper();
+    }
+}
@@ -0,0 +1,118 @@
+package com.androidbus.benchmark;
+
+import android.os.Looper;
+import android.support.annotation.NonNull;
+
+import com.androidbus.core.Bus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * First subscribe of a receiver class, which builds its handler table. Every operation loads the receiver
+ * again through its own class loader so the table is never already cached. Classes stay in the cache for
+ * the life of the fork, hence single shot batches instead of a timed loop.
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, batchSize = 1000)
+@Measurement(iterations = 10, batchSize = 1000)
+@Fork(1)
+@State(Scope.Thread)
+public class HandlerCacheBenchmark {
+
+    private Looper mLooper;
+    private byte[] mReceiverClass;
+
+    @Setup
+    public void setUp() throws IOException {
+        mLooper = BenchmarkApplication.start();
+        mReceiverClass = readClass(Receiver.class);
+    }
+
+    @Benchmark
+    public Object firstSubscribe() throws ReflectiveOperationException {
+        Object receiver = new FreshClassLoader(Receiver.class.getName(), mReceiverClass)
+                .loadClass(Receiver.class.getName())
+                .newInstance();
+        Bus.subscribe((Bus.BusResultReceiver) receiver);
+        Bus.unSubscribe((Bus.BusResultReceiver) receiver);
+        mLooper.idle();
+        return receiver;
+    }
+
+    @NonNull
+    private static byte[] readClass(@NonNull final Class clazz) throws IOException {
+        String resource = clazz.getName().replace('.', '/') + ".class";
+        try (InputStream in = clazz.getClassLoader().getResourceAsStream(resource)) {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        }
+    }
+
+    private static final class FreshClassLoader extends ClassLoader {
+
+        @NonNull
+        private final String mName;
+        @NonNull
+        private final byte[] mBytes;
+
+        FreshClassLoader(@NonNull final String name, @NonNull final byte[] bytes) {
+            super(HandlerCacheBenchmark.class.getClassLoader());
+            mName = name;
+            mBytes = bytes;
+        }
+
+        @Override
+        protected Class<?> loadClass(final String name, final boolean resolve) throws ClassNotFoundException {
+            if (!mName.equals(name)) {
+                return super.loadClass(name, resolve);
+            }
+            synchronized (this) {
+                Class<?> clazz = findLoadedClass(name);
+                return clazz != null ? clazz : defineClass(name, mBytes, 0, mBytes.length);
+            }
+        }
+    }
+
+    public static class Receiver implements Bus.BusResultReceiver {
+
+        @Bus.EventTakerResult(1)
+        public void onFirst() {
+        }
+
+        @Bus.EventTakerResult({2, 3, 4})
+        public void onSecond(final Bus.BusEvent event) {
+        }
+
+        @Bus.EventTakerResult(value = 5, coalesce = true)
+        public void onProgress(final Bus.BusEvent event) {
+        }
+
+        public void notAHandler() {
+        }
+
+        @Override
+        public String toString() {
+            return "Receiver";
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.androidbus.benchmark;
+
+import com.androidbus.core.Bus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Requests handed to the scheduler and executed by an inbox layer on a worker thread.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SendRequestBenchmark {
+
+    private static final int EVENT_TYPE = 1;
+    private static final int BATCH = 256;
+
+    private Receiver mReceiver;
+
+    @Setup
+    public void setUp() {
+        mReceiver = new Receiver();
+        BenchmarkApplication.start(mReceiver);
+    }
+
+    /**
+     * Send and wait for the handler, the latency of a single hop to a worker.
+     */
+    @Benchmark
+    public int roundTrip() {
+        int target = mReceiver.executed.get() + 1;
+        Bus.sendRequest(EVENT_TYPE);
+        return await(target);
+    }
+
+    /**
+     * Keep the scheduler busy with a burst of requests before waiting for them.
+     */
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public int burst() {
+        int target = mReceiver.executed.get() + BATCH;
+        for (int i = 0; i < BATCH; i++) {
+            Bus.sendRequest(EVENT_TYPE);
+        }
+        return await(target);
+    }
+
+    private int await(final int target) {
+        int executed;
+        while ((executed = mReceiver.executed.get()) < target) {
+            Thread.yield();
+        }
+        return executed;
+    }
+
+    public static class Receiver implements Bus.BusRequestReceiver {
+
+        public final AtomicInteger executed = new AtomicInteger();
+
+        @Bus.EventTakerRequest(EVENT_TYPE)
+        public void onRequest() {
+            executed.incrementAndGet();
+        }
+    }
+}
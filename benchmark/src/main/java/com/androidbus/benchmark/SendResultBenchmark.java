@@ -0,0 +1,96 @@
+package com.androidbus.benchmark;
+
+import android.os.Bundle;
+import android.os.Looper;
+
+import com.androidbus.core.Bus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One result fanned out to every subscriber and delivered on the main looper.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SendResultBenchmark {
+
+    private static final int EVENT_TYPE = 1;
+
+    @Param({"1", "10", "100", "1000"})
+    public int subscribers;
+
+    @Param({"false", "true"})
+    public boolean recyclable;
+
+    private Looper mLooper;
+    private Receiver[] mReceivers;
+    private Bundle mBundle;
+    private Integer mPayload;
+
+    @Setup
+    public void setUp() {
+        mLooper = BenchmarkApplication.start();
+        Bus.setRecyclable(EVENT_TYPE, recyclable);
+        mReceivers = new Receiver[subscribers];
+        for (int i = 0; i < subscribers; i++) {
+            mReceivers[i] = new Receiver();
+            Bus.subscribe(mReceivers[i]);
+        }
+        mBundle = new Bundle();
+        mBundle.putInt("value", 42);
+        mPayload = 42;
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Receiver receiver : mReceivers) {
+            Bus.unSubscribe(receiver);
+        }
+        mLooper.idle();
+    }
+
+    @Benchmark
+    public int sendResult() {
+        Bus.sendResult(EVENT_TYPE);
+        return mLooper.idle();
+    }
+
+    @Benchmark
+    public int sendResultWithBundle() {
+        Bus.sendResult(EVENT_TYPE, mBundle, null);
+        return mLooper.idle();
+    }
+
+    @Benchmark
+    public int sendResultWithPayload() {
+        Bus.sendResult(EVENT_TYPE, mPayload);
+        return mLooper.idle();
+    }
+
+    public static class Receiver implements Bus.BusResultReceiver {
+
+        public int received;
+
+        @Bus.EventTakerResult(EVENT_TYPE)
+        public void onResult(final Bus.BusEvent event) {
+            received += event.getBundleInput().size();
+        }
+    }
+}
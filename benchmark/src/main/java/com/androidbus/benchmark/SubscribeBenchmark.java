@@ -0,0 +1,81 @@
+package com.androidbus.benchmark;
+
+import android.os.Looper;
+
+import com.androidbus.core.Bus;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Subscribe and unsubscribe of a receiver whose handler table is already cached, as screens come and go.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SubscribeBenchmark {
+
+    private static final int EVENT_TYPE = 1;
+    private static final int OTHER_EVENT_TYPE = 2;
+
+    /**
+     * Receivers already subscribed to the same types, the copy-on-write index grows with them.
+     */
+    @Param({"0", "100", "1000"})
+    public int existing;
+
+    private Looper mLooper;
+    private Receiver[] mExisting;
+    private Receiver mReceiver;
+
+    @Setup
+    public void setUp() {
+        mLooper = BenchmarkApplication.start();
+        mExisting = new Receiver[existing];
+        for (int i = 0; i < existing; i++) {
+            mExisting[i] = new Receiver();
+            Bus.subscribe(mExisting[i]);
+        }
+        mReceiver = new Receiver();
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (Receiver receiver : mExisting) {
+            Bus.unSubscribe(receiver);
+        }
+        mLooper.idle();
+    }
+
+    @Benchmark
+    public void subscribeUnsubscribe() {
+        Bus.subscribe(mReceiver);
+        Bus.unSubscribe(mReceiver);
+    }
+
+    public static class Receiver implements Bus.BusResultReceiver {
+
+        @Bus.EventTakerResult(EVENT_TYPE)
+        public void onResult() {
+        }
+
+        @Bus.EventTakerResult(OTHER_EVENT_TYPE)
+        public void onOtherResult(final Bus.BusEvent event) {
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package android.app;
+
+import android.content.Context;
+
+public class Activity extends Context {
+
+    private boolean mFinished = false;
+
+    public void finish() {
+        mFinished = true;
+    }
+
+    public boolean isFinishing() {
+        return mFinished;
+    }
+
+    public boolean isDestroyed() {
+        return false;
+    }
+}
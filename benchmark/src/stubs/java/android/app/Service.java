@@ -0,0 +1,31 @@
+package android.app;
+
+import android.content.Context;
+import android.content.Intent;
+
+public abstract class Service extends Context {
+
+    public static final int START_STICKY = 1;
+    public static final int START_NOT_STICKY = 2;
+    public static final int START_REDELIVER_INTENT = 3;
+
+    public void onCreate() {
+    }
+
+    public int onStartCommand(final Intent intent, final int flags, final int startId) {
+        return START_STICKY;
+    }
+
+    public void onDestroy() {
+    }
+
+    public final void stopSelf() {
+    }
+
+    public final void stopSelf(final int startId) {
+    }
+
+    public final boolean stopSelfResult(final int startId) {
+        return true;
+    }
+}
@@ -0,0 +1,14 @@
+package android.content;
+
+public final class ComponentName {
+
+    private final String mClassName;
+
+    public ComponentName(final String pkg, final String cls) {
+        mClassName = cls;
+    }
+
+    public String getClassName() {
+        return mClassName;
+    }
+}
@@ -0,0 +1,33 @@
+package android.content;
+
+import android.content.pm.PackageManager;
+
+import java.io.File;
+
+/**
+ * Benchmark stub: services are never started, files go to the JVM temp directory.
+ */
+public class Context {
+
+    public static final int MODE_PRIVATE = 0;
+
+    public Context getApplicationContext() {
+        return this;
+    }
+
+    public PackageManager getPackageManager() {
+        return new PackageManager();
+    }
+
+    public String getPackageName() {
+        return "com.androidbus.benchmark";
+    }
+
+    public ComponentName startService(final Intent service) {
+        return null;
+    }
+
+    public File getFilesDir() {
+        return new File(System.getProperty("java.io.tmpdir"));
+    }
+}
@@ -0,0 +1,44 @@
+package android.content;
+
+import android.os.Parcelable;
+
+import java.util.HashMap;
+
+public class Intent {
+
+    private final HashMap<String, Object> mExtras = new HashMap<>();
+
+    public Intent() {
+    }
+
+    public Intent(final Context packageContext, final Class<?> cls) {
+    }
+
+    public Intent putExtra(final String name, final Parcelable value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public Intent putExtra(final String name, final Parcelable[] value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    public Intent putExtra(final String name, final boolean[] value) {
+        mExtras.put(name, value);
+        return this;
+    }
+
+    @SuppressWarnings("unchecked")
+    public <T extends Parcelable> T getParcelableExtra(final String name) {
+        return (T) mExtras.get(name);
+    }
+
+    public Parcelable[] getParcelableArrayExtra(final String name) {
+        return (Parcelable[]) mExtras.get(name);
+    }
+
+    public boolean[] getBooleanArrayExtra(final String name) {
+        return (boolean[]) mExtras.get(name);
+    }
+}
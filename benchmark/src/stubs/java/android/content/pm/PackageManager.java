@@ -0,0 +1,13 @@
+package android.content.pm;
+
+public class PackageManager {
+
+    public static final int GET_SERVICES = 0x00000004;
+
+    public static class NameNotFoundException extends Exception {
+    }
+
+    public PackageInfo getPackageInfo(final String packageName, final int flags) throws NameNotFoundException {
+        return new PackageInfo();
+    }
+}
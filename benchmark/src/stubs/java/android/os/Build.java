@@ -0,0 +1,17 @@
+package android.os;
+
+public class Build {
+
+    public static class VERSION {
+        public static final int SDK_INT = VERSION_CODES.LOLLIPOP_MR1;
+    }
+
+    public static class VERSION_CODES {
+        public static final int ICE_CREAM_SANDWICH = 14;
+        public static final int JELLY_BEAN = 16;
+        public static final int JELLY_BEAN_MR1 = 17;
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+        public static final int LOLLIPOP_MR1 = 22;
+    }
+}
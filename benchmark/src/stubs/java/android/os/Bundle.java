@@ -0,0 +1,105 @@
+package android.os;
+
+import java.util.HashMap;
+import java.util.Set;
+
+public final class Bundle implements Parcelable, Cloneable {
+
+    public static final Bundle EMPTY = new Bundle();
+
+    private final HashMap<String, Object> mMap;
+
+    public Bundle() {
+        mMap = new HashMap<>();
+    }
+
+    public Bundle(final Bundle b) {
+        mMap = new HashMap<>(b.mMap);
+    }
+
+    public int size() {
+        return mMap.size();
+    }
+
+    public boolean isEmpty() {
+        return mMap.isEmpty();
+    }
+
+    public void clear() {
+        mMap.clear();
+    }
+
+    public boolean containsKey(final String key) {
+        return mMap.containsKey(key);
+    }
+
+    public Object get(final String key) {
+        return mMap.get(key);
+    }
+
+    public void remove(final String key) {
+        mMap.remove(key);
+    }
+
+    public Set<String> keySet() {
+        return mMap.keySet();
+    }
+
+    public void putAll(final Bundle bundle) {
+        mMap.putAll(bundle.mMap);
+    }
+
+    public void putInt(final String key, final int value) {
+        mMap.put(key, value);
+    }
+
+    public int getInt(final String key) {
+        Object value = mMap.get(key);
+        return value instanceof Integer ? (Integer) value : 0;
+    }
+
+    public void putLong(final String key, final long value) {
+        mMap.put(key, value);
+    }
+
+    public long getLong(final String key) {
+        Object value = mMap.get(key);
+        return value instanceof Long ? (Long) value : 0L;
+    }
+
+    public void putBoolean(final String key, final boolean value) {
+        mMap.put(key, value);
+    }
+
+    public boolean getBoolean(final String key) {
+        Object value = mMap.get(key);
+        return value instanceof Boolean && (Boolean) value;
+    }
+
+    public void putString(final String key, final String value) {
+        mMap.put(key, value);
+    }
+
+    public String getString(final String key) {
+        Object value = mMap.get(key);
+        return value instanceof String ? (String) value : null;
+    }
+
+    public void setClassLoader(final ClassLoader loader) {
+    }
+
+    @Override
+    public Object clone() {
+        return new Bundle(this);
+    }
+
+    @Override
+    public void writeToParcel(final Parcel dest, final int flags) {
+        dest.writeBundle(this);
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+}
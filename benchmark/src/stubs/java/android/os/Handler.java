@@ -0,0 +1,91 @@
+package android.os;
+
+public class Handler {
+
+    public interface Callback {
+        boolean handleMessage(Message msg);
+    }
+
+    private final Looper mLooper;
+    private final Callback mCallback;
+
+    public Handler() {
+        this(Looper.myLooper(), null);
+    }
+
+    public Handler(final Callback callback) {
+        this(Looper.myLooper(), callback);
+    }
+
+    public Handler(final Looper looper) {
+        this(looper, null);
+    }
+
+    public Handler(final Looper looper, final Callback callback) {
+        if (looper == null) {
+            throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+        }
+        mLooper = looper;
+        mCallback = callback;
+    }
+
+    public final Looper getLooper() {
+        return mLooper;
+    }
+
+    public void handleMessage(final Message msg) {
+    }
+
+    public void dispatchMessage(final Message msg) {
+        if (msg.callback != null) {
+            msg.callback.run();
+        } else if (mCallback == null || !mCallback.handleMessage(msg)) {
+            handleMessage(msg);
+        }
+    }
+
+    public final Message obtainMessage(final int what) {
+        return Message.obtain(this, what, null);
+    }
+
+    public final Message obtainMessage(final int what, final Object obj) {
+        return Message.obtain(this, what, obj);
+    }
+
+    public final Message obtainMessage(final int what, final int arg1, final int arg2, final Object obj) {
+        return Message.obtain(this, what, arg1, arg2, obj);
+    }
+
+    public final boolean sendMessage(final Message msg) {
+        msg.target = this;
+        mLooper.getQueue().enqueue(msg);
+        return true;
+    }
+
+    /**
+     * Benchmark stub: the delay is ignored, the message runs with the others on the next {@link Looper#idle()}.
+     */
+    public final boolean sendMessageDelayed(final Message msg, final long delayMillis) {
+        return sendMessage(msg);
+    }
+
+    public final void removeMessages(final int what) {
+        mLooper.getQueue().remove(this, what, null);
+    }
+
+    public final void removeMessages(final int what, final Object obj) {
+        mLooper.getQueue().remove(this, what, obj);
+    }
+
+    public final boolean sendEmptyMessage(final int what) {
+        return sendMessage(obtainMessage(what));
+    }
+
+    public final boolean post(final Runnable r) {
+        return sendMessage(Message.obtain(this, r));
+    }
+
+    public final void removeCallbacks(final Runnable r) {
+        mLooper.getQueue().remove(this, r);
+    }
+}
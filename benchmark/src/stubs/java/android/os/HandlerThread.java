@@ -0,0 +1,48 @@
+package android.os;
+
+/**
+ * Benchmark stub: runs its stub looper until {@link #quit()}.
+ */
+public class HandlerThread extends Thread {
+
+    private Looper mLooper;
+    private volatile boolean mQuit = false;
+
+    public HandlerThread(final String name) {
+        this(name, Process.THREAD_PRIORITY_DEFAULT);
+    }
+
+    public HandlerThread(final String name, final int priority) {
+        super(name);
+    }
+
+    @Override
+    public void run() {
+        Looper.prepare();
+        synchronized (this) {
+            mLooper = Looper.myLooper();
+            notifyAll();
+        }
+        while (!mQuit) {
+            if (mLooper.idle() == 0) {
+                Thread.yield();
+            }
+        }
+    }
+
+    public synchronized Looper getLooper() {
+        while (isAlive() && mLooper == null) {
+            try {
+                wait();
+            } catch (InterruptedException ignored) {
+                // keep waiting
+            }
+        }
+        return mLooper;
+    }
+
+    public boolean quit() {
+        mQuit = true;
+        return true;
+    }
+}
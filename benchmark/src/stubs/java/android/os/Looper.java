@@ -0,0 +1,57 @@
+package android.os;
+
+/**
+ * Benchmark stub: nothing loops on its own, call {@link #idle()} on the looper thread to run the queued messages.
+ */
+public final class Looper {
+
+    private static final ThreadLocal<Looper> sThreadLocal = new ThreadLocal<>();
+    private static volatile Looper sMainLooper;
+
+    private final MessageQueue mQueue = new MessageQueue();
+    private final Thread mThread = Thread.currentThread();
+
+    private Looper() {
+    }
+
+    public static void prepare() {
+        if (sThreadLocal.get() != null) {
+            throw new RuntimeException("Only one Looper may be created per thread");
+        }
+        sThreadLocal.set(new Looper());
+    }
+
+    public static void prepareMainLooper() {
+        prepare();
+        sMainLooper = myLooper();
+    }
+
+    public static Looper myLooper() {
+        return sThreadLocal.get();
+    }
+
+    public static Looper getMainLooper() {
+        return sMainLooper;
+    }
+
+    public Thread getThread() {
+        return mThread;
+    }
+
+    public MessageQueue getQueue() {
+        return mQueue;
+    }
+
+    /**
+     * Runs every message queued so far, including the ones they post, and returns how many ran.
+     */
+    public int idle() {
+        int count = 0;
+        Message message;
+        while ((message = mQueue.next()) != null) {
+            message.target.dispatchMessage(message);
+            count++;
+        }
+        return count;
+    }
+}
@@ -0,0 +1,51 @@
+package android.os;
+
+public final class Message {
+
+    public int what;
+    public int arg1;
+    public int arg2;
+    public Object obj;
+
+    Handler target;
+    Runnable callback;
+
+    public static Message obtain() {
+        return new Message();
+    }
+
+    public static Message obtain(final Handler h, final int what, final int arg1, final int arg2, final Object obj) {
+        Message m = obtain();
+        m.target = h;
+        m.what = what;
+        m.arg1 = arg1;
+        m.arg2 = arg2;
+        m.obj = obj;
+        return m;
+    }
+
+    public static Message obtain(final Handler h, final int what, final Object obj) {
+        return obtain(h, what, 0, 0, obj);
+    }
+
+    public static Message obtain(final Handler h, final Runnable callback) {
+        Message m = obtain();
+        m.target = h;
+        m.callback = callback;
+        return m;
+    }
+
+    public Handler getTarget() {
+        return target;
+    }
+
+    public void sendToTarget() {
+        target.sendMessage(this);
+    }
+
+    public void setAsynchronous(final boolean async) {
+    }
+
+    public void recycle() {
+    }
+}
@@ -0,0 +1,38 @@
+package android.os;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+public final class MessageQueue {
+
+    private final ArrayDeque<Message> mMessages = new ArrayDeque<>();
+
+    synchronized void enqueue(final Message message) {
+        mMessages.addLast(message);
+    }
+
+    synchronized void remove(final Handler handler, final Runnable callback) {
+        Iterator<Message> iterator = mMessages.iterator();
+        while (iterator.hasNext()) {
+            Message message = iterator.next();
+            if (message.target == handler && message.callback == callback) {
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized void remove(final Handler handler, final int what, final Object obj) {
+        Iterator<Message> iterator = mMessages.iterator();
+        while (iterator.hasNext()) {
+            Message message = iterator.next();
+            if (message.target == handler && message.callback == null && message.what == what
+                    && (obj == null || message.obj == obj)) {
+                iterator.remove();
+            }
+        }
+    }
+
+    synchronized Message next() {
+        return mMessages.pollFirst();
+    }
+}
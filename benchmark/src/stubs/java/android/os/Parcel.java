@@ -0,0 +1,81 @@
+package android.os;
+
+import java.util.ArrayList;
+
+/**
+ * Benchmark stub: keeps the written values in memory instead of marshalling them.
+ */
+public final class Parcel {
+
+    private final ArrayList<Object> mValues = new ArrayList<>();
+    private int mPosition = 0;
+
+    public static Parcel obtain() {
+        return new Parcel();
+    }
+
+    public void recycle() {
+        mValues.clear();
+        mPosition = 0;
+    }
+
+    public int dataPosition() {
+        return mPosition;
+    }
+
+    public void setDataPosition(final int pos) {
+        mPosition = pos;
+    }
+
+    public byte[] marshall() {
+        throw new UnsupportedOperationException("the benchmarks do not use the request journal");
+    }
+
+    public void unmarshall(final byte[] data, final int offset, final int length) {
+        throw new UnsupportedOperationException("the benchmarks do not use the request journal");
+    }
+
+    public void writeInt(final int val) {
+        mValues.add(val);
+    }
+
+    public int readInt() {
+        return (Integer) mValues.get(mPosition++);
+    }
+
+    public void writeLong(final long val) {
+        mValues.add(val);
+    }
+
+    public long readLong() {
+        return (Long) mValues.get(mPosition++);
+    }
+
+    public void writeString(final String val) {
+        mValues.add(val);
+    }
+
+    public String readString() {
+        return (String) mValues.get(mPosition++);
+    }
+
+    public void writeBundle(final Bundle val) {
+        mValues.add(val == null ? null : new Bundle(val));
+    }
+
+    public Bundle readBundle() {
+        return (Bundle) mValues.get(mPosition++);
+    }
+
+    public Bundle readBundle(final ClassLoader loader) {
+        return readBundle();
+    }
+
+    public void writeValue(final Object val) {
+        mValues.add(val);
+    }
+
+    public Object readValue(final ClassLoader loader) {
+        return mValues.get(mPosition++);
+    }
+}
@@ -0,0 +1,21 @@
+package android.os;
+
+public class Process {
+
+    public static final int THREAD_PRIORITY_DEFAULT = 0;
+    public static final int THREAD_PRIORITY_BACKGROUND = 10;
+
+    public static void setThreadPriority(final int priority) {
+    }
+
+    public static void setThreadPriority(final int tid, final int priority) {
+    }
+
+    public static int getThreadPriority(final int tid) {
+        return THREAD_PRIORITY_DEFAULT;
+    }
+
+    public static int myTid() {
+        return 0;
+    }
+}
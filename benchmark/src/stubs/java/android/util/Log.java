@@ -0,0 +1,26 @@
+package android.util;
+
+public final class Log {
+
+    private Log() {
+    }
+
+    public static int e(final String tag, final String msg) {
+        System.err.println(tag + ": " + msg);
+        return 0;
+    }
+
+    public static int e(final String tag, final String msg, final Throwable tr) {
+        System.err.println(tag + ": " + msg);
+        tr.printStackTrace();
+        return 0;
+    }
+
+    public static int w(final String tag, final String msg) {
+        return e(tag, msg);
+    }
+
+    public static int w(final String tag, final String msg, final Throwable tr) {
+        return e(tag, msg, tr);
+    }
+}
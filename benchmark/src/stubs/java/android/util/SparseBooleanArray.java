@@ -0,0 +1,95 @@
+package android.util;
+
+import java.util.Arrays;
+
+public class SparseBooleanArray implements Cloneable {
+
+    private int[] mKeys;
+    private boolean[] mValues;
+    private int mSize;
+
+    public SparseBooleanArray() {
+        this(10);
+    }
+
+    public SparseBooleanArray(final int initialCapacity) {
+        mKeys = new int[Math.max(1, initialCapacity)];
+        mValues = new boolean[mKeys.length];
+    }
+
+    public boolean get(final int key) {
+        return get(key, false);
+    }
+
+    public boolean get(final int key, final boolean valueIfKeyNotFound) {
+        int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+        return i < 0 ? valueIfKeyNotFound : mValues[i];
+    }
+
+    public void put(final int key, final boolean value) {
+        int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (i >= 0) {
+            mValues[i] = value;
+            return;
+        }
+        i = ~i;
+        if (mSize == mKeys.length) {
+            mKeys = Arrays.copyOf(mKeys, mSize * 2);
+            mValues = Arrays.copyOf(mValues, mSize * 2);
+        }
+        System.arraycopy(mKeys, i, mKeys, i + 1, mSize - i);
+        System.arraycopy(mValues, i, mValues, i + 1, mSize - i);
+        mKeys[i] = key;
+        mValues[i] = value;
+        mSize++;
+    }
+
+    public void append(final int key, final boolean value) {
+        put(key, value);
+    }
+
+    public void delete(final int key) {
+        int i = Arrays.binarySearch(mKeys, 0, mSize, key);
+        if (i >= 0) {
+            removeAt(i);
+        }
+    }
+
+    public void removeAt(final int index) {
+        System.arraycopy(mKeys, index + 1, mKeys, index, mSize - index - 1);
+        System.arraycopy(mValues, index + 1, mValues, index, mSize - index - 1);
+        mSize--;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int keyAt(final int index) {
+        return mKeys[index];
+    }
+
+    public boolean valueAt(final int index) {
+        return mValues[index];
+    }
+
+    public int indexOfKey(final int key) {
+        return Arrays.binarySearch(mKeys, 0, mSize, key);
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    @Override
+    public SparseBooleanArray clone() {
+        try {
+            SparseBooleanArray clone = (SparseBooleanArray) super.clone();
+            clone.mKeys = mKeys.clone();
+            clone.mValues = mValues.clone();
+            return clone;
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+}
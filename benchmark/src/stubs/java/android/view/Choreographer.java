@@ -0,0 +1,48 @@
+package android.view;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.os.Message;
+
+/**
+ * Benchmark stub: frame callbacks are queued on the looper like any other message.
+ */
+public final class Choreographer {
+
+    public interface FrameCallback {
+        void doFrame(long frameTimeNanos);
+    }
+
+    private static final ThreadLocal<Choreographer> sThreadInstance = new ThreadLocal<Choreographer>() {
+        @Override
+        protected Choreographer initialValue() {
+            return new Choreographer(Looper.myLooper());
+        }
+    };
+
+    private static final int MSG_FRAME = 0;
+
+    private final Handler mHandler;
+
+    private Choreographer(final Looper looper) {
+        mHandler = new Handler(looper, new Handler.Callback() {
+            @Override
+            public boolean handleMessage(final Message msg) {
+                ((FrameCallback) msg.obj).doFrame(System.nanoTime());
+                return true;
+            }
+        });
+    }
+
+    public static Choreographer getInstance() {
+        return sThreadInstance.get();
+    }
+
+    public void postFrameCallback(final FrameCallback callback) {
+        mHandler.sendMessage(mHandler.obtainMessage(MSG_FRAME, callback));
+    }
+
+    public void removeFrameCallback(final FrameCallback callback) {
+        mHandler.removeMessages(MSG_FRAME, callback);
+    }
+}
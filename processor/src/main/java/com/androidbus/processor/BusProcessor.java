@@ -0,0 +1,585 @@
+package com.androidbus.processor;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.Filer;
+import javax.annotation.processing.Messager;
+import javax.annotation.processing.ProcessingEnvironment;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.AnnotationMirror;
+import javax.lang.model.element.AnnotationValue;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.ExecutableElement;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.PackageElement;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.TypeMirror;
+import javax.lang.model.util.ElementFilter;
+import javax.lang.model.util.Elements;
+import javax.lang.model.util.Types;
+import javax.tools.Diagnostic;
+import javax.tools.JavaFileObject;
+
+/**
+ * Generates a {@code <receiver>$$BusDispatcher} for every class with {@code @EventTakerRequest} or
+ * {@code @EventTakerResult} methods, so the bus can call handlers directly instead of through reflection.
+ * With the {@code androidbus.index} option it also writes that class as a {@code Bus.BusIndex} listing the
+ * dispatchers and result services of the module.
+ */
+@SupportedAnnotationTypes({BusProcessor.EVENT_TAKER_REQUEST, BusProcessor.EVENT_TAKER_RESULT})
+public final class BusProcessor extends AbstractProcessor {
+
+    static final String EVENT_TAKER_REQUEST = "com.androidbus.core.Bus.EventTakerRequest";
+    static final String EVENT_TAKER_RESULT = "com.androidbus.core.Bus.EventTakerResult";
+
+    static final String OPTION_INDEX = "androidbus.index";
+
+    private static final String BUS_EVENT = "com.androidbus.core.Bus.BusEvent";
+    private static final String BUS_RESULT_SERVICE = "com.androidbus.core.Bus.BusResultService";
+    private static final String DISPATCHER_SUFFIX = "$$BusDispatcher";
+    private static final int DEFAULT_EVENT_TYPE = -1;
+    private static final int PRIORITY_LOW = 0;
+    private static final int PRIORITY_HIGH = 2;
+    private static final int THREAD_SUBSCRIBER = 0;
+    private static final int THREAD_BACKGROUND = 3;
+
+    private Elements mElements;
+    private Types mTypes;
+    private Messager mMessager;
+    private Filer mFiler;
+
+    private final Set<String> mGenerated = new HashSet<>();
+    // binary name of the receiver -> generated dispatcher, for the index
+    private final Map<String, String> mDispatchers = new LinkedHashMap<>();
+    private final Set<String> mServices = new LinkedHashSet<>();
+    // dispatchers in the written index, -1 before it is written
+    private int mIndexed = -1;
+
+    @Override
+    public synchronized void init(final ProcessingEnvironment processingEnv) {
+        super.init(processingEnv);
+        mElements = processingEnv.getElementUtils();
+        mTypes = processingEnv.getTypeUtils();
+        mMessager = processingEnv.getMessager();
+        mFiler = processingEnv.getFiler();
+    }
+
+    @Override
+    public SourceVersion getSupportedSourceVersion() {
+        return SourceVersion.latestSupported();
+    }
+
+    @Override
+    public Set<String> getSupportedOptions() {
+        return Collections.singleton(OPTION_INDEX);
+    }
+
+    @Override
+    public boolean process(final Set<? extends TypeElement> annotations, final RoundEnvironment roundEnv) {
+        TypeElement requestAnnotation = mElements.getTypeElement(EVENT_TAKER_REQUEST);
+        TypeElement resultAnnotation = mElements.getTypeElement(EVENT_TAKER_RESULT);
+        if (requestAnnotation == null || resultAnnotation == null) {
+            return false;
+        }
+        boolean valid = true;
+        for (Element element : roundEnv.getElementsAnnotatedWith(requestAnnotation)) {
+            valid &= checkHandler(element, requestAnnotation);
+        }
+        for (Element element : roundEnv.getElementsAnnotatedWith(resultAnnotation)) {
+            valid &= checkHandler(element, resultAnnotation);
+        }
+        if (!valid) {
+            return false;
+        }
+        List<TypeElement> types = new ArrayList<>();
+        collectTypes(roundEnv.getRootElements(), types);
+        TypeElement service = mElements.getTypeElement(BUS_RESULT_SERVICE);
+        for (TypeElement type : types) {
+            processType(type, requestAnnotation, resultAnnotation);
+            if (service != null && isService(type, service.asType())) {
+                mServices.add(type.getQualifiedName().toString());
+            }
+        }
+        String index = processingEnv.getOptions().get(OPTION_INDEX);
+        if (index != null && !annotations.isEmpty()) {
+            if (mIndexed < 0) {
+                writeIndex(index);
+                mIndexed = mDispatchers.size();
+            } else if (mDispatchers.size() > mIndexed) {
+                // classes generated by other processors in later rounds
+                mMessager.printMessage(Diagnostic.Kind.WARNING, "handlers generated after the first round are not in " + index);
+                mIndexed = mDispatchers.size();
+            }
+        }
+        return false;
+    }
+
+    // ---------- VALIDATION ----------
+
+    private boolean checkHandler(final Element element, final TypeElement annotation) {
+        String name = "@" + annotation.getSimpleName();
+        if (element.getKind() != ElementKind.METHOD) {
+            return true;
+        }
+        ExecutableElement method = (ExecutableElement) element;
+        Element owner = method.getEnclosingElement();
+        if (owner.getKind() != ElementKind.CLASS) {
+            mMessager.printMessage(Diagnostic.Kind.WARNING,
+                    name + " is only read from class methods and is ignored here", method);
+            return true;
+        }
+        if (!method.getModifiers().contains(Modifier.PUBLIC)) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, name + " method must be public", method);
+            return false;
+        }
+        if (!hasValidParams(method)) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR,
+                    name + " method must take no parameters or a single Bus.BusEvent", method);
+            return false;
+        }
+        for (Element enclosing = owner; enclosing instanceof TypeElement; enclosing = enclosing.getEnclosingElement()) {
+            if (enclosing.getModifiers().contains(Modifier.PRIVATE)) {
+                mMessager.printMessage(Diagnostic.Kind.ERROR, name + " method must not be declared in a private class", method);
+                return false;
+            }
+        }
+        AnnotationMirror mirror = getMirror(method, annotation);
+        for (int priority : getValues(mirror, "priority")) {
+            if (priority < PRIORITY_LOW || priority > PRIORITY_HIGH) {
+                mMessager.printMessage(Diagnostic.Kind.ERROR,
+                        name + " priority must be one of Bus.PRIORITY_LOW, PRIORITY_NORMAL, PRIORITY_HIGH", method, mirror);
+                return false;
+            }
+        }
+        List<Integer> categoryMask = getValues(mirror, "categoryMask");
+        List<Integer> category = getValues(mirror, "category");
+        if (!categoryMask.isEmpty() && (category.get(0) & ~categoryMask.get(0)) != 0) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, name + " category has bits outside categoryMask", method, mirror);
+            return false;
+        }
+        if (getLong(mirror, "cacheTtlMillis") < 0) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, name + " cacheTtlMillis must not be negative", method, mirror);
+            return false;
+        }
+        for (int thread : getValues(mirror, "thread")) {
+            if (thread < THREAD_SUBSCRIBER || thread > THREAD_BACKGROUND) {
+                mMessager.printMessage(Diagnostic.Kind.ERROR, name
+                        + " thread must be one of Bus.THREAD_SUBSCRIBER, THREAD_POSTING, THREAD_MAIN, THREAD_BACKGROUND", method, mirror);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean hasValidParams(final ExecutableElement method) {
+        List<? extends VariableElement> params = method.getParameters();
+        if (params.isEmpty()) {
+            return true;
+        }
+        TypeElement busEvent = mElements.getTypeElement(BUS_EVENT);
+        return params.size() == 1 && busEvent != null
+                && mTypes.isSameType(mTypes.erasure(params.get(0).asType()), mTypes.erasure(busEvent.asType()));
+    }
+
+    private static boolean isAccessible(final TypeElement type) {
+        for (Element enclosing = type; enclosing instanceof TypeElement; enclosing = enclosing.getEnclosingElement()) {
+            if (enclosing.getModifiers().contains(Modifier.PRIVATE)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isService(final TypeElement type, final TypeMirror service) {
+        if (type.getModifiers().contains(Modifier.ABSTRACT) || !mTypes.isSubtype(type.asType(), mTypes.erasure(service))) {
+            return false;
+        }
+        for (Element enclosing = type; enclosing instanceof TypeElement; enclosing = enclosing.getEnclosingElement()) {
+            if (!enclosing.getModifiers().contains(Modifier.PUBLIC)) {
+                // the system could not start it either
+                mMessager.printMessage(Diagnostic.Kind.ERROR, type.getQualifiedName() + " handles bus requests and must be"
+                        + (enclosing == type ? " public" : " nested in public classes only"), type);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // ---------- COLLECTING ----------
+
+    private static void collectTypes(final Iterable<? extends Element> elements, final List<TypeElement> types) {
+        for (Element element : elements) {
+            if (element.getKind() == ElementKind.CLASS) {
+                types.add((TypeElement) element);
+            }
+            if (element.getKind().isClass() || element.getKind().isInterface()) {
+                collectTypes(element.getEnclosedElements(), types);
+            }
+        }
+    }
+
+    private void processType(final TypeElement type, final TypeElement requestAnnotation, final TypeElement resultAnnotation) {
+        if (!isAccessible(type) || mGenerated.contains(getBinaryName(type))) {
+            return;
+        }
+        Map<Integer, ExecutableElement> requests = new LinkedHashMap<>();
+        Map<Integer, Integer> priorities = new LinkedHashMap<>();
+        List<Integer> collapsed = new ArrayList<>();
+        Map<Integer, Integer> cacheResults = new LinkedHashMap<>();
+        Map<Integer, Long> cacheTtls = new LinkedHashMap<>();
+        Map<Integer, ExecutableElement> results = new LinkedHashMap<>();
+        List<Integer> coalesced = new ArrayList<>();
+        Map<Integer, Integer> threads = new LinkedHashMap<>();
+        ExecutableElement resultAll = null;
+        List<ExecutableElement> patternMethods = new ArrayList<>();
+        List<Integer> patterns = new ArrayList<>();
+        for (ExecutableElement method : ElementFilter.methodsIn(mElements.getAllMembers(type))) {
+            AnnotationMirror request = getMirror(method, requestAnnotation);
+            AnnotationMirror result = getMirror(method, resultAnnotation);
+            if (request == null && result == null) {
+                continue;
+            }
+            if (!method.getModifiers().contains(Modifier.PUBLIC)) {
+                // Class.getMethods() does not see it either
+                continue;
+            }
+            if (!hasValidParams(method)) {
+                // inherited from a compiled class, leave it to the reflective path
+                return;
+            }
+            if (request != null) {
+                int priority = getValues(request, "priority").get(0);
+                for (int value : getValues(request, "value")) {
+                    if (!putHandler(type, requests, value, method, requestAnnotation)) {
+                        return;
+                    }
+                    priorities.put(value, priority);
+                    if (getFlag(request, "collapse")) {
+                        collapsed.add(value);
+                    }
+                    cacheResults.put(value, getValues(request, "cacheResult").get(0));
+                    cacheTtls.put(value, getLong(request, "cacheTtlMillis"));
+                }
+            }
+            if (result != null && isPattern(result)) {
+                patternMethods.add(method);
+                patterns.add(getValues(result, "rangeFrom").get(0));
+                patterns.add(getValues(result, "rangeTo").get(0));
+                patterns.add(getValues(result, "categoryMask").get(0));
+                patterns.add(getValues(result, "category").get(0));
+                patterns.add(getValues(result, "thread").get(0));
+                patterns.add(getFlag(result, "coalesce") ? 1 : 0);
+            } else if (result != null) {
+                boolean coalesce = getFlag(result, "coalesce");
+                int thread = getValues(result, "thread").get(0);
+                for (int value : getValues(result, "value")) {
+                    if (coalesce) {
+                        coalesced.add(value);
+                    }
+                    threads.put(value, thread);
+                    if (value != DEFAULT_EVENT_TYPE) {
+                        if (!putHandler(type, results, value, method, resultAnnotation)) {
+                            return;
+                        }
+                    } else if (resultAll != null) {
+                        mMessager.printMessage(Diagnostic.Kind.ERROR, "more than one @" + resultAnnotation.getSimpleName()
+                                + " method for all event types: " + resultAll.getSimpleName() + ", " + method.getSimpleName(), type);
+                        return;
+                    } else {
+                        resultAll = method;
+                    }
+                }
+            }
+        }
+        if (requests.isEmpty() && results.isEmpty() && resultAll == null && patternMethods.isEmpty()) {
+            return;
+        }
+        try {
+            String dispatcher = writeDispatcher(type, requests, priorities, collapsed, cacheResults, cacheTtls,
+                    results, coalesced, threads, resultAll, patterns, patternMethods);
+            mGenerated.add(getBinaryName(type));
+            mDispatchers.put(getBinaryName(type), dispatcher);
+        } catch (IOException e) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "unable to write dispatcher: " + e.getMessage(), type);
+        }
+    }
+
+    private boolean isPattern(final AnnotationMirror result) {
+        return getValues(result, "rangeFrom").get(0) <= getValues(result, "rangeTo").get(0)
+                || getValues(result, "categoryMask").get(0) != 0;
+    }
+
+    private boolean putHandler(final TypeElement type, final Map<Integer, ExecutableElement> handlers, final int value,
+                               final ExecutableElement method, final TypeElement annotation) {
+        ExecutableElement previous = handlers.put(value, method);
+        if (previous != null && !previous.equals(method)) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "more than one @" + annotation.getSimpleName()
+                    + " method for event type " + value + ": " + previous.getSimpleName() + ", " + method.getSimpleName(), type);
+            return false;
+        }
+        return true;
+    }
+
+    private static AnnotationMirror getMirror(final Element element, final TypeElement annotation) {
+        for (AnnotationMirror mirror : element.getAnnotationMirrors()) {
+            if (mirror.getAnnotationType().asElement().equals(annotation)) {
+                return mirror;
+            }
+        }
+        return null;
+    }
+
+    private boolean getFlag(final AnnotationMirror mirror, final String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : mElements.getElementValuesWithDefaults(mirror).entrySet()) {
+            if (name.contentEquals(entry.getKey().getSimpleName())) {
+                return (Boolean) entry.getValue().getValue();
+            }
+        }
+        return false;
+    }
+
+    private long getLong(final AnnotationMirror mirror, final String name) {
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : mElements.getElementValuesWithDefaults(mirror).entrySet()) {
+            if (name.contentEquals(entry.getKey().getSimpleName())) {
+                return ((Number) entry.getValue().getValue()).longValue();
+            }
+        }
+        return 0;
+    }
+
+    private List<Integer> getValues(final AnnotationMirror mirror, final String name) {
+        List<Integer> values = new ArrayList<>();
+        for (Map.Entry<? extends ExecutableElement, ? extends AnnotationValue> entry
+                : mElements.getElementValuesWithDefaults(mirror).entrySet()) {
+            if (!name.contentEquals(entry.getKey().getSimpleName())) {
+                continue;
+            }
+            Object value = entry.getValue().getValue();
+            if (value instanceof List) {
+                for (Object item : (List<?>) value) {
+                    values.add((Integer) ((AnnotationValue) item).getValue());
+                }
+            } else {
+                values.add((Integer) value);
+            }
+        }
+        return values;
+    }
+
+    // ---------- WRITING ----------
+
+    private String getBinaryName(final TypeElement type) {
+        return mElements.getBinaryName(type).toString();
+    }
+
+    private String writeDispatcher(final TypeElement type,
+                                   final Map<Integer, ExecutableElement> requests,
+                                   final Map<Integer, Integer> priorities,
+                                   final List<Integer> collapsed,
+                                   final Map<Integer, Integer> cacheResults,
+                                   final Map<Integer, Long> cacheTtls,
+                                   final Map<Integer, ExecutableElement> results,
+                                   final List<Integer> coalesced,
+                                   final Map<Integer, Integer> threads,
+                                   final ExecutableElement resultAll,
+                                   final List<Integer> patterns,
+                                   final List<ExecutableElement> patternMethods) throws IOException {
+        PackageElement packageElement = mElements.getPackageOf(type);
+        String packageName = packageElement.isUnnamed() ? "" : packageElement.getQualifiedName().toString();
+        String binaryName = getBinaryName(type);
+        String className = (packageName.isEmpty() ? binaryName : binaryName.substring(packageName.length() + 1)) + DISPATCHER_SUFFIX;
+        String targetName = mTypes.erasure(type.asType()).toString();
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("// Generated code from AndroidBus. Do not modify!\n");
+        if (!packageName.isEmpty()) {
+            builder.append("package ").append(packageName).append(";\n\n");
+        }
+        builder.append("import com.androidbus.core.Bus;\n\n");
+        builder.append("public final class ").append(className).append(" implements Bus.BusDispatcher {\n\n");
+
+        List<Integer> resultTypes = new ArrayList<>(results.keySet());
+        if (resultAll != null) {
+            resultTypes.add(DEFAULT_EVENT_TYPE);
+        }
+        List<Integer> resultThreads = new ArrayList<>();
+        for (int value : resultTypes) {
+            resultThreads.add(threads.get(value));
+        }
+        appendTypes(builder, "REQUEST_TYPES", requests.keySet());
+        appendTypes(builder, "REQUEST_PRIORITIES", priorities.values());
+        appendTypes(builder, "COLLAPSED_REQUEST_TYPES", collapsed);
+        appendTypes(builder, "REQUEST_CACHE_RESULTS", cacheResults.values());
+        appendTtls(builder, "REQUEST_CACHE_TTLS", cacheTtls.values());
+        appendTypes(builder, "RESULT_TYPES", resultTypes);
+        appendTypes(builder, "COALESCED_RESULT_TYPES", coalesced);
+        appendTypes(builder, "RESULT_THREADS", resultThreads);
+        appendTypes(builder, "RESULT_PATTERNS", patterns);
+        builder.append("\n");
+        builder.append("    @Override\n    public int[] requestTypes() {\n        return REQUEST_TYPES;\n    }\n\n");
+        builder.append("    @Override\n    public int[] requestPriorities() {\n        return REQUEST_PRIORITIES;\n    }\n\n");
+        builder.append("    @Override\n    public int[] collapsedRequestTypes() {\n        return COLLAPSED_REQUEST_TYPES;\n    }\n\n");
+        builder.append("    @Override\n    public int[] requestCacheResults() {\n        return REQUEST_CACHE_RESULTS;\n    }\n\n");
+        builder.append("    @Override\n    public long[] requestCacheTtls() {\n        return REQUEST_CACHE_TTLS;\n    }\n\n");
+        builder.append("    @Override\n    public int[] resultTypes() {\n        return RESULT_TYPES;\n    }\n\n");
+        builder.append("    @Override\n    public int[] coalescedResultTypes() {\n        return COALESCED_RESULT_TYPES;\n    }\n\n");
+        builder.append("    @Override\n    public int[] resultThreads() {\n        return RESULT_THREADS;\n    }\n\n");
+        builder.append("    @Override\n    public int[] resultPatterns() {\n        return RESULT_PATTERNS;\n    }\n\n");
+        appendSwitch(builder, "dispatchRequest", targetName, requests);
+        builder.append("\n");
+        appendSwitch(builder, "dispatchResult", targetName, results);
+        builder.append("\n");
+        builder.append("    @Override\n    public boolean dispatchResultAll(Object receiver, Bus.BusEvent event) {\n");
+        if (resultAll != null) {
+            appendCall(builder, "        ", targetName, resultAll);
+            builder.append("        return true;\n");
+        } else {
+            builder.append("        return false;\n");
+        }
+        builder.append("    }\n\n");
+        builder.append("    @Override\n    public boolean dispatchResultPattern(Object receiver, int pattern, Bus.BusEvent event) {\n");
+        if (patternMethods.isEmpty()) {
+            builder.append("        return false;\n");
+        } else {
+            builder.append("        switch (pattern) {\n");
+            for (int i = 0; i < patternMethods.size(); i++) {
+                builder.append("            case ").append(i).append(":\n");
+                appendCall(builder, "                ", targetName, patternMethods.get(i));
+                builder.append("                return true;\n");
+            }
+            builder.append("            default:\n                return false;\n        }\n");
+        }
+        builder.append("    }\n}\n");
+
+        String qualifiedName = packageName.isEmpty() ? className : packageName + "." + className;
+        write(qualifiedName, builder, type);
+        return qualifiedName;
+    }
+
+    private void writeIndex(final String index) {
+        int dot = index.lastIndexOf('.');
+        String packageName = dot < 0 ? "" : index.substring(0, dot);
+        String className = index.substring(dot + 1);
+
+        StringBuilder builder = new StringBuilder();
+        builder.append("// Generated code from AndroidBus. Do not modify!\n");
+        if (!packageName.isEmpty()) {
+            builder.append("package ").append(packageName).append(";\n\n");
+        }
+        builder.append("import com.androidbus.core.Bus;\n\n");
+        builder.append("public final class ").append(className).append(" implements Bus.BusIndex {\n\n");
+        builder.append("    @SuppressWarnings(\"unchecked\")\n");
+        builder.append("    private static final Class<? extends Bus.BusResultService>[] SERVICES = new Class[]{");
+        boolean first = true;
+        for (String service : mServices) {
+            builder.append(first ? "" : ", ").append(service).append(".class");
+            first = false;
+        }
+        builder.append("};\n\n");
+        builder.append("    @Override\n    public Class<? extends Bus.BusResultService>[] services() {\n");
+        builder.append("        return SERVICES.clone();\n    }\n\n");
+        builder.append("    @Override\n    public Bus.BusDispatcher getDispatcher(Class<?> receiverClass) {\n");
+        if (mDispatchers.isEmpty()) {
+            builder.append("        return null;\n    }\n}\n");
+        } else {
+            builder.append("        switch (receiverClass.getName()) {\n");
+            for (Map.Entry<String, String> entry : mDispatchers.entrySet()) {
+                builder.append("            case \"").append(entry.getKey()).append("\":\n");
+                builder.append("                return new ").append(entry.getValue()).append("();\n");
+            }
+            builder.append("            default:\n                return null;\n        }\n    }\n}\n");
+        }
+        try {
+            write(index, builder, null);
+        } catch (IOException e) {
+            mMessager.printMessage(Diagnostic.Kind.ERROR, "unable to write index " + index + ": " + e.getMessage());
+        }
+    }
+
+    private void write(final String qualifiedName, final StringBuilder builder, final Element origin) throws IOException {
+        JavaFileObject file = origin != null
+                ? mFiler.createSourceFile(qualifiedName, origin) : mFiler.createSourceFile(qualifiedName);
+        Writer writer = file.openWriter();
+        try {
+            writer.write(builder.toString());
+        } finally {
+            writer.close();
+        }
+    }
+
+    private static void appendTypes(final StringBuilder builder, final String name, final Iterable<Integer> types) {
+        builder.append("    private static final int[] ").append(name).append(" = {");
+        boolean first = true;
+        for (int type : types) {
+            builder.append(first ? "" : ", ").append(type);
+            first = false;
+        }
+        builder.append("};\n");
+    }
+
+    private static void appendTtls(final StringBuilder builder, final String name, final Iterable<Long> ttls) {
+        builder.append("    private static final long[] ").append(name).append(" = {");
+        boolean first = true;
+        for (long ttl : ttls) {
+            builder.append(first ? "" : ", ").append(ttl).append("L");
+            first = false;
+        }
+        builder.append("};\n");
+    }
+
+    private static void appendSwitch(final StringBuilder builder, final String name, final String targetName,
+                                     final Map<Integer, ExecutableElement> handlers) {
+        builder.append("    @Override\n    public boolean ").append(name).append("(Object receiver, Bus.BusEvent event) {\n");
+        if (handlers.isEmpty()) {
+            builder.append("        return false;\n    }\n");
+            return;
+        }
+        builder.append("        switch (event.getType()) {\n");
+        for (Map.Entry<Integer, ExecutableElement> entry : handlers.entrySet()) {
+            builder.append("            case ").append(entry.getKey()).append(":\n");
+            appendCall(builder, "                ", targetName, entry.getValue());
+            builder.append("                return true;\n");
+        }
+        builder.append("            default:\n                return false;\n        }\n    }\n");
+    }
+
+    private static void appendCall(final StringBuilder builder, final String indent, final String targetName,
+                                   final ExecutableElement method) {
+        boolean checked = !method.getThrownTypes().isEmpty();
+        String callIndent = checked ? indent + "    " : indent;
+        if (checked) {
+            builder.append(indent).append("try {\n");
+        }
+        builder.append(callIndent);
+        if (method.getModifiers().contains(Modifier.STATIC)) {
+            builder.append(targetName);
+        } else {
+            builder.append("((").append(targetName).append(") receiver)");
+        }
+        builder.append('.').append(method.getSimpleName()).append(method.getParameters().isEmpty() ? "();\n" : "(event);\n");
+        if (checked) {
+            // same contract as the reflective path, which rethrows everything wrapped in a RuntimeException
+            builder.append(indent).append("} catch (RuntimeException | Error e) {\n")
+                    .append(indent).append("    throw e;\n")
+                    .append(indent).append("} catch (Throwable e) {\n")
+                    .append(indent).append("    throw new RuntimeException(e);\n")
+                    .append(indent).append("}\n");
+        }
+    }
+}